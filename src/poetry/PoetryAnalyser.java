@@ -18,6 +18,8 @@ import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Scanner;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.apache.commons.math3.random.EmpiricalDistribution;
 
@@ -30,6 +32,7 @@ import beast.core.util.Log;
 import beast.util.LogAnalyser;
 import poetry.sampler.POEM;
 import poetry.util.Lock;
+import poetry.util.ReplicateContext;
 import poetry.util.RuntimeLoggable;
 
 
@@ -82,7 +85,7 @@ public class PoetryAnalyser extends Runnable {
 		this.replicateNum = this.getReplicateNumber();
 		this.database = database;
 		String[] bits = this.database.getAbsolutePath().split("/");
-		this.localDatabase = new File(bits[bits.length-1]);
+		this.localDatabase = ReplicateContext.resolve(bits[bits.length-1]);
 		this.poems = poems;
 		this.runtimeLogfile = runtimeLogfile;
 		this.burnin = burnin;
@@ -103,7 +106,7 @@ public class PoetryAnalyser extends Runnable {
 		this.sampleNum = sampleNumInput.get();
 		this.database = databaseFileInput.get();
 		String[] bits = this.database.getAbsolutePath().split("/");
-		this.localDatabase = new File(bits[bits.length-1]);
+		this.localDatabase = ReplicateContext.resolve(bits[bits.length-1]);
 		this.replicateNum = this.getReplicateNumber();
 		this.poems = poemsInput.get();
 		this.runtimeLogfile = runtimeLoggerInput.get();
@@ -164,7 +167,7 @@ public class PoetryAnalyser extends Runnable {
 		// Calculate ESS for each POEM
 		for (POEM poem : this.poems) {
 			
-			File logFile = new File(poem.getLoggerFileName());
+			File logFile = ReplicateContext.resolve(poem.getLoggerFileName());
 			
 			if (getNumLineInFile(logFile) <= 5) continue;
 			
@@ -205,11 +208,12 @@ public class PoetryAnalyser extends Runnable {
 	/**
 	 * Get the replicate number of this by examining the current working directory
 	 * eg. if the pwd is out/xml2/replicate7/ then the replicate number is 7
+	 * If several replicates share this JVM then the replicate folder of this thread is used instead
 	 * @return
 	 */
 	public int getReplicateNumber() {
 		
-		String pwd = System.getProperty("user.dir");
+		String pwd = ReplicateContext.getWorkingDirectory().getAbsolutePath();
 		String[] split = pwd.split("/");
 		String replicate = split[split.length-1];
 		try {
@@ -366,7 +370,7 @@ public class PoetryAnalyser extends Runnable {
 			return;
 		}
 		
-		File weightFile = new File("../weights.tsv");
+		File weightFile = ReplicateContext.resolve("../weights.tsv");
 		try {
 			
 			
@@ -501,6 +505,7 @@ public class PoetryAnalyser extends Runnable {
 		}
 
 		Files.write(dbout.toPath(), fileContent, StandardCharsets.UTF_8);
+		databaseWritten(dbout);
 
 	}
 	
@@ -511,6 +516,7 @@ public class PoetryAnalyser extends Runnable {
 			pw.write(this.db.get(colname)[rowNum] + "\t");
 		}
 		pw.close();
+		databaseWritten(dbout);
 	}
 	
 	
@@ -688,11 +694,88 @@ public class PoetryAnalyser extends Runnable {
 	
 	/**
 	 * Opens the database and returns it as a hashmap
+	 * The parsed database is shared by all analysers in this JVM and is only re-read when the file has changed,
+	 * so each caller receives its own copy of the columns
+	 * Writes made by this JVM are detected by a counter (see databaseWritten), and writes made by other processes by the file's size and modification time
 	 * @return
 	 * @throws Exception
 	 */
 	public static LinkedHashMap<String, String[]> openDatabase(File filename) throws Exception {
 		
+		String key = filename.getAbsolutePath();
+		SharedDatabase shared;
+		try {
+			shared = sharedDatabases.compute(key, (k, existing) -> {
+				long writes = getDatabaseWrites(k);
+				long modified = filename.lastModified();
+				long length = filename.length();
+				if (existing != null && existing.writes == writes && existing.modified == modified && existing.length == length) return existing;
+				try {
+					return new SharedDatabase(parseDatabase(filename), writes, modified, length);
+				} catch (Exception e) {
+					throw new DatabaseException(e);
+				}
+			});
+		} catch (DatabaseException e) {
+			throw (Exception) e.getCause();
+		}
+		
+		LinkedHashMap<String, String[]> map = new LinkedHashMap<String, String[]>();
+		for (String colname : shared.columns.keySet()) {
+			map.put(colname, shared.columns.get(colname).clone());
+		}
+		return map;
+		
+	}
+	
+	
+	/**
+	 * Must be called after this JVM writes to a database, so that other analysers do not read a stale copy of it
+	 * @param filename
+	 */
+	public static void databaseWritten(File filename) {
+		databaseWrites.computeIfAbsent(filename.getAbsolutePath(), k -> new AtomicLong()).incrementAndGet();
+	}
+	
+	private static long getDatabaseWrites(String key) {
+		AtomicLong writes = databaseWrites.get(key);
+		return writes == null ? 0 : writes.get();
+	}
+	
+	
+	// Parsed databases, and the number of times this JVM has written to them, indexed by absolute path
+	private static final ConcurrentHashMap<String, SharedDatabase> sharedDatabases = new ConcurrentHashMap<>();
+	private static final ConcurrentHashMap<String, AtomicLong> databaseWrites = new ConcurrentHashMap<>();
+	
+	private static class SharedDatabase {
+		final LinkedHashMap<String, String[]> columns;
+		final long writes;
+		final long modified;
+		final long length;
+		SharedDatabase(LinkedHashMap<String, String[]> columns, long writes, long modified, long length){
+			this.columns = columns;
+			this.writes = writes;
+			this.modified = modified;
+			this.length = length;
+		}
+	}
+	
+	// Carries a parsing error out of ConcurrentHashMap.compute
+	private static class DatabaseException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+		DatabaseException(Exception cause){
+			super(cause);
+		}
+	}
+	
+	
+	/**
+	 * Parses the database file into a hashmap
+	 * @return
+	 * @throws Exception
+	 */
+	private static LinkedHashMap<String, String[]> parseDatabase(File filename) throws Exception {
+		
 		LinkedHashMap<String, String[]> map = new LinkedHashMap<String, String[]>();
 		
 		// Read headers
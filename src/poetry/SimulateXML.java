@@ -1,6 +1,7 @@
 package poetry;
 
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
@@ -10,6 +11,13 @@ import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
@@ -28,6 +36,8 @@ import beast.core.StateNode;
 import beast.core.util.Log;
 import beast.evolution.alignment.Alignment;
 import beast.evolution.tree.TreeInterface;
+import beast.util.Randomizer;
+import beast.util.XMLParser;
 import poetry.functions.XMLFunction;
 import poetry.functions.XMLInputSetter;
 import poetry.learning.DimensionalSampler;
@@ -41,6 +51,7 @@ import poetry.sampler.RunnableSampler;
 import poetry.sampler.XMLSampler;
 import poetry.util.BEAST2Weka;
 import poetry.util.Lock;
+import poetry.util.ReplicateContext;
 import poetry.util.RuntimeLoggable;
 import poetry.util.XMLUtils;
 
@@ -83,6 +94,11 @@ public class SimulateXML extends Runnable {
 			+ "(default: only at the end of the chain)", 0);
 	
 	
+	final public Input<Integer> threadsInput = new Input<>("threads", "Number of xml files to generate in parallel. If more than 1, each sample "
+			+ "is generated by a copy of this object using its own seed, so the output does not depend on the number of threads, as long as there is more than 1. "
+			+ "A single thread draws every sample from one random number stream, as before (default 1)", 1);
+	
+	
 	final public Input<List<BEASTObject>> nodesInput = new Input<>("object", "Any beast object to be added into the main file "
 			+ "(eg. StateNode, CalculationNode, Distribution, Operator)", new ArrayList<>());
 	
@@ -107,6 +123,14 @@ public class SimulateXML extends Runnable {
 	
 	boolean resuming;
 	int startFrom; // Start from 1 unless resuming
+	int nthreads;
+	
+	
+	// Set while parsing the per-thread copies of this object, so that they do not touch the output folder
+	private static final ThreadLocal<Boolean> isWorkerCopy = ThreadLocal.withInitial(() -> false);
+	
+	// Drawing the components is the only step which uses the random number generator, so it is done one sample at a time
+	private static final Object randomLock = new Object();
 	
 	//Document poetry;
 	
@@ -126,6 +150,7 @@ public class SimulateXML extends Runnable {
 		this.updateEvery = updateEveryInput.get();
 		this.startFrom = 1;
 		this.resuming = false;
+		this.nthreads = threadsInput.get();
 		//this.poetry = null;
 		
 		// Ensure that runner already has an ID
@@ -141,6 +166,13 @@ public class SimulateXML extends Runnable {
 		
 		
 		this.dbFile = Paths.get(this.outFolder.getPath(), DATABASE_FILENAME).toFile();
+		if (this.nthreads <= 0) {
+			throw new IllegalArgumentException("Please ensure that threads > 0");
+		}
+		
+		
+		// Copies made by the parallel sampler leave the folder and database alone
+		if (isWorkerCopy.get()) return;
 		
 		
 		// Create / overwrite / resume
@@ -222,7 +254,13 @@ public class SimulateXML extends Runnable {
 	public void run() throws Exception {
 
 		
-		int ndigits = 2 + (int) Math.floor(1 + Math.log(this.nsamples) / Math.log(10));
+		if (this.nthreads > 1) {
+			this.runParallel();
+			return;
+		}
+		
+		
+		int ndigits = this.getNumDigits();
 		for (int sample = this.startFrom; sample <= this.nsamples; sample ++) {
 			
 			// Pad the string so that the files are name xml0001, xml0002, ..., xml0099. 
@@ -233,26 +271,13 @@ public class SimulateXML extends Runnable {
 			Log.warning("Sample " + sampleStr);
 			Log.warning("--------------------------------------------------\n");
 			
-			// Sample alignments
-			if (this.data != null && this.data instanceof XMLSampler) {
-				DatasetSampler d = (DatasetSampler) this.data;
-				d.reset();
-			}
-			
-			// Sample model components
-			for (ModelSampler model : this.modelElements) {
-				model.reset();
-			}
-			
-
-			
-			// Sample a search algorithm
-			if (this.runner instanceof RunnableSampler) ((RunnableSampler)this.runner).reset();
+			// Sample alignments, models, and a search algorithm
+			this.sampleComponents();
 			
 			
 			// Print the new xml
-			String sXML = this.toXML(sample);
-			this.writeXMLFile(sXML, sampleStr);
+			Document doc = this.toXML(sample);
+			this.writeXMLFile(doc, sampleStr);
 			
 			
 			// Update database
@@ -266,16 +291,206 @@ public class SimulateXML extends Runnable {
 	}
 	
 	
+	/**
+	 * Number of digits in the xml folder names
+	 * @return
+	 */
+	protected int getNumDigits() {
+		return 2 + (int) Math.floor(1 + Math.log(this.nsamples) / Math.log(10));
+	}
+	
+	
+	/**
+	 * Sample the dataset, the model components, and the search algorithm
+	 */
+	protected void sampleComponents() {
+		
+		// Sample alignments
+		if (this.data != null && this.data instanceof XMLSampler) {
+			DatasetSampler d = (DatasetSampler) this.data;
+			d.reset();
+		}
+		
+		// Sample model components
+		for (ModelSampler model : this.modelElements) {
+			model.reset();
+		}
+		
+
+		
+		// Sample a search algorithm
+		if (this.runner instanceof RunnableSampler) ((RunnableSampler)this.runner).reset();
+		
+	}
+	
+	
+	/**
+	 * Make all of the random draws for the next sample, as sampleComponents does but without opening any alignments
+	 * Used by runParallel, which draws one sample at a time
+	 */
+	protected void drawComponents() {
+		
+		// Sample alignments
+		if (this.data != null && this.data instanceof XMLSampler) {
+			DatasetSampler d = (DatasetSampler) this.data;
+			d.drawSample();
+		}
+		
+		// Sample model components
+		for (ModelSampler model : this.modelElements) {
+			model.reset();
+		}
+		
+
+		
+		// Sample a search algorithm
+		if (this.runner instanceof RunnableSampler) ((RunnableSampler)this.runner).reset();
+		
+	}
+	
+	
+	/**
+	 * Open and subsample the alignment chosen by drawComponents. This does not use the random number generator
+	 */
+	protected void loadComponents() {
+		if (this.data != null && this.data instanceof XMLSampler) {
+			DatasetSampler d = (DatasetSampler) this.data;
+			d.loadSample();
+		}
+	}
+	
+	
+	/**
+	 * Generate the samples on several threads
+	 * Each thread has its own copy of this object (and therefore of the samplers), and reseeds the random number generator 
+	 * at the start of each sample. Database rows are written by a single writer in sample order
+	 * If a sample fails, the other threads stop after their current sample
+	 * @throws Exception
+	 */
+	protected void runParallel() throws Exception {
+		
+		
+		final long seed = Randomizer.getSeed();
+		final int ndigits = this.getNumDigits();
+		Log.warning("Generating " + (this.nsamples - this.startFrom + 1) + " samples on " + this.nthreads + " threads");
+		
+		
+		// Copy this object for each thread
+		List<SimulateXML> copies = new ArrayList<>();
+		for (int t = 0; t < this.nthreads; t ++) {
+			copies.add(this.copyForWorker());
+		}
+		
+		
+		// Ordered database writer
+		final TreeMap<Integer, String> pendingRows = new TreeMap<>();
+		final int[] nextRow = new int[] { this.startFrom };
+		
+		
+		final AtomicInteger nextSample = new AtomicInteger(this.startFrom);
+		final AtomicBoolean failed = new AtomicBoolean(false);
+		ExecutorService pool = Executors.newFixedThreadPool(this.nthreads);
+		List<Future<Void>> futures = new ArrayList<>();
+		for (SimulateXML copy : copies) {
+			futures.add(pool.submit(ReplicateContext.<Void>wrapCallable(() -> {
+				
+				int sample;
+				while (!failed.get() && (sample = nextSample.getAndIncrement()) <= this.nsamples) {
+					try {
+					
+						String sampleStr = padLeftZeros("" + sample, ndigits);
+						Log.warning("Sample " + sampleStr);
+						
+						// Draw with a seed which depends only on the sample number. Opening the alignment is done outside of the lock
+						synchronized (randomLock) {
+							Randomizer.setSeed(seed + sample);
+							copy.drawComponents();
+						}
+						copy.loadComponents();
+						
+						Document doc = copy.toXML(sample);
+						copy.writeXMLFile(doc, sampleStr);
+						String rows = copy.getDatabaseRows(sample);
+						
+						
+						// Write all rows which are now in order
+						synchronized (pendingRows) {
+							pendingRows.put(sample, rows);
+							while (pendingRows.containsKey(nextRow[0])) {
+								this.appendToDatabase(pendingRows.remove(nextRow[0]));
+								nextRow[0] ++;
+							}
+						}
+						
+					} catch (Exception e) {
+						
+						// Stop the other threads from starting any more samples
+						failed.set(true);
+						throw new Exception("Sample " + sample + " failed: " + e.getMessage(), e);
+					}
+				}
+				return null;
+				
+			})));
+		}
+		pool.shutdown();
+		
+		
+		// Wait for every thread to stop, even if one of them has failed
+		ExecutionException error = null;
+		for (Future<Void> future : futures) {
+			try {
+				future.get();
+			} catch (ExecutionException e) {
+				if (error == null) error = e;
+			}
+		}
+		if (error != null) {
+			
+			// Samples after the failed one have xml files but were never added to the database
+			synchronized (pendingRows) {
+				if (!pendingRows.isEmpty()) {
+					Log.warning("Samples " + pendingRows.keySet() + " were generated but have not been added to the database, "
+							+ "because sample " + nextRow[0] + " did not finish. Please remove their xml folders before resuming");
+				}
+			}
+			throw error;
+		}
+		
+		Log.warning("Done!");
+		
+	}
+	
+	
+	/**
+	 * Copy this object, and all of its samplers, by serialising and parsing it
+	 * @return
+	 * @throws Exception
+	 */
+	protected SimulateXML copyForWorker() throws Exception {
+		String xml = new XMLSimProducer().toXML(this);
+		isWorkerCopy.set(true);
+		try {
+			SimulateXML copy = (SimulateXML) new XMLParser().parseFromString(xml);
+			copy.startFrom = this.startFrom;
+			return copy;
+		}finally {
+			isWorkerCopy.set(false);
+		}
+	}
+	
+	
 	
 	
 	/**
 	 * Write the xml file in a folder indexed by its sample number
-	 * @param xml
+	 * The document is streamed to the file rather than converted into a string first
+	 * @param doc
 	 * @param sampleStr
 	 * @return
 	 * @throws Exception 
 	 */
-	protected void writeXMLFile(String xml, String sampleStr) throws Exception {
+	protected void writeXMLFile(Document doc, String sampleStr) throws Exception {
 		
 		// Path to subfolder. Build it if it does not exist
 		File folder = Paths.get(this.outFolder.getPath(), "xml" + sampleStr).toFile();
@@ -289,9 +504,10 @@ public class SimulateXML extends Runnable {
 		Path path = Paths.get(folder.getPath(), "out.xml");
 		
 		// Write the file
-		PrintStream out = new PrintStream(path.toFile());
-		out.println(xml);
-		out.close();
+		try (BufferedOutputStream out = new BufferedOutputStream(new FileOutputStream(path.toFile()))) {
+			XMLUtils.writeDocument(doc, out);
+			out.write(System.lineSeparator().getBytes());
+		}
 		
 		
 		// Path to replicate subsubfolders
@@ -314,25 +530,21 @@ public class SimulateXML extends Runnable {
 	
 	
 	/**
-	 * Get the output xml string 
+	 * Get the output xml document
 	 * All elements will be placed inside the runnable
 	 * @return
 	 * @throws Exception 
 	 */
-	protected String toXML(int sampleNum) throws Exception {
-		
+	protected Document toXML(int sampleNum) throws Exception {
 		
-		XMLSimProducer producer = new XMLSimProducer();
-		String sXML = producer.toXML(this);
-		
-
 		
 		// xml comments
 		String comments = "\nXML sample " + sampleNum + "\n";
 		
 		
 		// Parse the xml and get the runner element
-        Document doc = XMLUtils.loadXMLFromString(sXML);
+        Document doc = XMLUtils.loadXMLFromString(new XMLSimProducer().toXML(this));
+        XMLUtils.buildIDIndex(doc);
         Element runner = XMLUtils.getElementById(doc, this.runner.getID());
         Element run = XMLUtils.getElementById(doc, this.getID());
         
@@ -342,7 +554,7 @@ public class SimulateXML extends Runnable {
         	Element dataset = XMLUtils.getElementById(doc, this.data.getID());
 			Element datasetParent = (Element) dataset.getParentNode();
 			datasetParent.removeChild(dataset);
-			run.getParentNode().insertBefore(dataset, run);
+			XMLUtils.insertBefore(run.getParentNode(), dataset, run);
 			if (!datasetParent.getNodeName().equals("beast")) {
 				datasetParent.setAttribute(dataset.getNodeName(), "@" + this.data.getID());
 			}
@@ -400,7 +612,7 @@ public class SimulateXML extends Runnable {
         // Replace this runnable element (and all of its children) with its runnable child
         Element parent = (Element) run.getParentNode();
         parent.removeChild(run);
-        parent.appendChild(runner);
+        XMLUtils.appendChild(parent, runner);
   
 		
 		// Add a comment describing the dataset/model etc
@@ -420,16 +632,16 @@ public class SimulateXML extends Runnable {
 		
 		// Create a temporal logger
 		Element runtimeLogger = doc.createElement("logger");
-		runner.appendChild(runtimeLogger);
-		runtimeLogger.setAttribute("id", XMLUtils.getUniqueID(doc, "RuntimeLogger"));
+		XMLUtils.appendChild(runner, runtimeLogger);
+		XMLUtils.setID(runtimeLogger, "RuntimeLogger", doc);
 		runtimeLogger.setAttribute("fileName", RUNTIME_LOGNAME);
 		runtimeLogger.setAttribute("logEvery", "" + 10000);
 		runtimeLogger.setAttribute("spec", Logger.class.getCanonicalName());
 		Element runtimeLoggable = doc.createElement("log");
-		runtimeLogger.appendChild(runtimeLoggable);
+		XMLUtils.appendChild(runtimeLogger, runtimeLoggable);
 		runtimeLoggable.setAttribute("spec", RuntimeLoggable.class.getCanonicalName());
 		runtimeLoggable.setAttribute("static", "true");
-		runtimeLoggable.setAttribute("id", XMLUtils.getUniqueID(doc, "runtime"));
+		XMLUtils.setID(runtimeLoggable, "runtime", doc);
 		
 		
 		
@@ -463,8 +675,7 @@ public class SimulateXML extends Runnable {
 		
 		
 		
-        sXML = XMLUtils.getXMLStringFromDocument(doc);
-		return sXML;
+		return doc;
 		
 	}
 	
@@ -503,7 +714,7 @@ public class SimulateXML extends Runnable {
 	    scheduler.setAttribute("updateEvery", updateEvery2);
 	    scheduler.setAttribute("coordinateWeights", "" + coordinateWeightsInput.get());
 	    if (placeholderInput.get() != null) scheduler.setAttribute("placeholder", "@" + placeholderInput.get().getID());
-	    runner.appendChild(scheduler);
+	    XMLUtils.appendChild(runner, scheduler);
 	    
 	    
 	    // Use a dirichlet/dimensional sampler initially
@@ -542,7 +753,7 @@ public class SimulateXML extends Runnable {
 	    
 	    }
 	    sampler.setAttribute("static", "true");
-	    scheduler.appendChild(sampler);
+	    XMLUtils.appendChild(scheduler, sampler);
 	    
 		
 	    // Copy poems over from main doc
@@ -569,7 +780,7 @@ public class SimulateXML extends Runnable {
 	    		}
 
 	    	}
-	    	scheduler.appendChild(imported);
+	    	XMLUtils.appendChild(scheduler, imported);
 	    }
 		
 	}
@@ -632,6 +843,7 @@ public class SimulateXML extends Runnable {
 		dbOut.println();
 		
 		dbOut.close();
+		PoetryAnalyser.databaseWritten(this.dbFile);
 	
 		
 	}
@@ -659,13 +871,36 @@ public class SimulateXML extends Runnable {
 	
 
 	/**
-	 * Prepare header for the database
+	 * Append the rows of this sample to the database
 	 * @throws FileNotFoundException 
 	 */
 	protected void appendToDatabase(int sampleNum) throws FileNotFoundException {
-		
-		// Append
+		this.appendToDatabase(this.getDatabaseRows(sampleNum));
+	}
+	
+	
+	/**
+	 * Append rows to the database
+	 * @param rows
+	 * @throws FileNotFoundException
+	 */
+	protected void appendToDatabase(String rows) throws FileNotFoundException {
 		PrintStream dbOut = new PrintStream(new BufferedOutputStream(new FileOutputStream(this.dbFile, true)));
+		dbOut.print(rows);
+		dbOut.close();
+		PoetryAnalyser.databaseWritten(this.dbFile);
+	}
+	
+	
+	/**
+	 * The database rows (one per replicate) of the current sample
+	 * @param sampleNum
+	 * @return
+	 */
+	protected String getDatabaseRows(int sampleNum) {
+		
+		ByteArrayOutputStream rows = new ByteArrayOutputStream();
+		PrintStream dbOut = new PrintStream(rows);
 	
 		String dataset = this.data == null ? "NA" : !(this.data instanceof DatasetSampler) ? "NA" : ((DatasetSampler)this.data).getFilePath();
 		int npartitions = this.data == null ? 0 : !(this.data instanceof DatasetSampler) ? 1 : ((DatasetSampler)this.data).getNumPartitions();
@@ -735,7 +970,7 @@ public class SimulateXML extends Runnable {
 		}
 		
 		dbOut.close();
-		
+		return rows.toString();
 		
 	}
 	
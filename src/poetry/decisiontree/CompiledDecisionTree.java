@@ -0,0 +1,352 @@
+package poetry.decisiontree;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import poetry.decisiontree.DecisionTreeDistribution.ResponseMode;
+import poetry.distribution.FlexibleDirichlet;
+import weka.core.Attribute;
+import weka.core.DenseInstance;
+import weka.core.Instance;
+import weka.core.Instances;
+
+
+/**
+ * A snapshot of a decision tree as flat arrays, for predicting many instances at once
+ * Each internal node holds the column of its covariate, its threshold (or nominal value index) and the numbers of its children
+ * Each leaf holds the coefficients of its regression model. Rows are in the attribute order of the header which the tree was
+ * compiled against, with nominal values as their index (as given by Instance.toDoubleArray)
+ * The snapshot does not change when the tree or its parameters do, so compile the tree again after they have changed
+ * @author jdou557
+ *
+ */
+public class CompiledDecisionTree {
+
+
+	final Instances header;
+	final ResponseMode regression;
+
+	// Internal nodes. The root is node 0
+	final int[] feature;
+	final double[] threshold;
+	final boolean[] nominal;
+	final int[] trueChild;
+	final int[] falseChild;
+
+	// Leaf number of each node, or -1 if internal
+	final int[] leafNum;
+
+	// Leaf models
+	final DecisionNode[] leaves;
+	final double[] intercept;
+	final double[][] intercepts;
+	final double[][] slopes;
+	final double[] sigma;
+	final double[] multinomialP;
+	final int ntargets;
+
+	// Column of each leaf predictor, or -1 if it is not in the header
+	final int[] predCols;
+
+	// Number of nodes compiled so far
+	private int nnodes;
+
+
+
+	/**
+	 * Compile a tree
+	 * @param tree
+	 * @param header - the attributes of the rows which will be predicted
+	 */
+	public CompiledDecisionTree(DecisionTree tree, Instances header) {
+
+		this.header = header;
+		DecisionNode root = tree.getRoot();
+		this.regression = root.getRegressionMode();
+		int nodeCount = root.getNodeCount();
+		this.feature = new int[nodeCount];
+		this.threshold = new double[nodeCount];
+		this.nominal = new boolean[nodeCount];
+		this.trueChild = new int[nodeCount];
+		this.falseChild = new int[nodeCount];
+		this.leafNum = new int[nodeCount];
+
+
+		// Flatten the tree
+		List<DecisionNode> leafList = new ArrayList<>();
+		this.nnodes = 0;
+		this.compile(root, leafList);
+		this.leaves = leafList.toArray(new DecisionNode[leafList.size()]);
+
+
+		// Leaf predictors
+		List<String> predAttr = root.getPredAttrs();
+		int npred = predAttr == null ? 0 : predAttr.size();
+		this.predCols = new int[npred];
+		for (int i = 0; i < npred; i ++) {
+			Attribute attr = header.attribute(predAttr.get(i));
+			this.predCols[i] = attr == null ? -1 : attr.index();
+		}
+		List<String> targetAttr = root.targetAttr;
+		this.ntargets = targetAttr == null ? 1 : targetAttr.size();
+
+
+		// Leaf models
+		int nleaves = this.leaves.length;
+		this.intercept = new double[nleaves];
+		this.intercepts = new double[nleaves][];
+		this.slopes = new double[nleaves][npred];
+		this.sigma = new double[nleaves];
+		for (int l = 0; l < nleaves; l ++) {
+			DecisionNode leaf = this.leaves[l];
+			this.intercept[l] = leaf.getIntercept();
+			this.sigma[l] = leaf.getSigma();
+			for (int i = 0; i < npred; i ++) this.slopes[l][i] = leaf.getSlope(i);
+			if (this.regression == ResponseMode.dirichlet) {
+				this.intercepts[l] = new double[this.ntargets];
+				for (int k = 0; k < this.ntargets; k ++) this.intercepts[l][k] = leaf.getIntercept(k);
+			}
+		}
+		this.multinomialP = root.getMultinomialP();
+
+	}
+
+
+
+	/**
+	 * Number the nodes of this subtree in pre order
+	 * @return the number of the node
+	 */
+	private int compile(DecisionNode node, List<DecisionNode> leafList) {
+
+		int i = this.nnodes++;
+		if (node.isLeaf()) {
+			this.feature[i] = -1;
+			this.leafNum[i] = leafList.size();
+			leafList.add(node);
+			return i;
+		}
+		this.leafNum[i] = -1;
+
+
+		// The attribute and where to split it
+		Attribute attr;
+		double value = 0;
+		if (node.getSplit() != null && !node.metadataTokens.containsKey("attribute")) {
+			Attribute splitAttr = node.getSplit().getSplitAttribute(node.getIndex());
+			if (splitAttr == null) throw new IllegalArgumentException("Error: node " + node.getIndex() + " has no split parameters");
+			attr = this.header.attribute(splitAttr.name());
+			value = node.getSplit().getSplitThreshold(node.getIndex());
+
+			// Map the nominal value through its name, in case the header is different
+			if (attr != null && attr.isNominal() && value >= 0) value = attr.indexOfValue(splitAttr.value((int) value));
+
+		}else {
+			attr = this.header.attribute(node.getAttributeName());
+			if (attr != null) value = attr.isNominal() ? attr.indexOfValue(node.getAttributeValueName()) : Double.parseDouble(node.getAttributeValueName());
+		}
+
+
+		int t = this.compile(node.getTrueChild(), leafList);
+		int f = this.compile(node.getFalseChild(), leafList);
+		if (attr == null) {
+
+			// Unknown attribute: always take the largest subtree
+			this.feature[i] = 0;
+			this.trueChild[i] = this.falseChild[i] = node.getFalseChild().getNumInstances() > node.getTrueChild().getNumInstances() ? f : t;
+
+		}else {
+			this.feature[i] = attr.index();
+			this.nominal[i] = attr.isNominal();
+			this.threshold[i] = value;
+			this.trueChild[i] = t;
+			this.falseChild[i] = f;
+		}
+		return i;
+
+	}
+
+
+
+	/**
+	 * Number of leaves
+	 * @return
+	 */
+	public int getLeafCount() {
+		return this.leaves.length;
+	}
+
+
+	/**
+	 * The leaf which this row falls into
+	 * @param row
+	 * @return leaf number
+	 */
+	public int getLeafNum(double[] row) {
+		int i = 0;
+		while (this.leafNum[i] < 0) {
+			double x = row[this.feature[i]];
+
+			// Missing values go to the false child
+			boolean match = this.nominal[i] ? x == this.threshold[i] : x <= this.threshold[i];
+			i = match ? this.trueChild[i] : this.falseChild[i];
+		}
+		return this.leafNum[i];
+	}
+
+
+	/**
+	 * The leaf node which this row falls into
+	 * @param row
+	 * @return
+	 */
+	public DecisionNode getLeaf(double[] row) {
+		return this.leaves[this.getLeafNum(row)];
+	}
+
+
+	/**
+	 * Leaf numbers of each row
+	 * @param rows
+	 * @return
+	 */
+	public int[] getLeafNums(double[][] rows) {
+		int[] nums = new int[rows.length];
+		for (int r = 0; r < rows.length; r ++) nums[r] = this.getLeafNum(rows[r]);
+		return nums;
+	}
+
+
+	/**
+	 * Predict the target feature value(s) of one row
+	 * @param row
+	 * @return
+	 */
+	public double[] predict(double[] row) {
+		double[] response = new double[this.ntargets];
+		this.predict(row, response);
+		return response;
+	}
+
+
+	/**
+	 * Predict the target feature value(s) of each row
+	 * @param rows
+	 * @return
+	 */
+	public double[][] predictBatch(double[][] rows) {
+		double[][] predictions = new double[rows.length][this.ntargets];
+		for (int r = 0; r < rows.length; r ++) this.predict(rows[r], predictions[r]);
+		return predictions;
+	}
+
+
+
+	/**
+	 * Same as DecisionNode.predict, using the coefficients of the leaf which this row falls into
+	 */
+	private void predict(double[] row, double[] response) {
+
+		int l = this.getLeafNum(row);
+
+
+		// The gaussian process is not compiled
+		if (this.regression == ResponseMode.gaussianprocess) {
+			Instance inst = new DenseInstance(1.0, row);
+			inst.setDataset(this.header);
+			double[] pred = this.leaves[l].predict(inst);
+			System.arraycopy(pred, 0, response, 0, response.length);
+			return;
+		}
+
+
+		double[] m = this.slopes[l];
+		for (int targetNum = 0; targetNum < response.length; targetNum ++) {
+
+			double y = this.intercept[l];
+			for (int i = 0; i < this.predCols.length; i ++) {
+				if (this.regression == ResponseMode.dirichlet && targetNum != i) continue;
+				double x = this.getPredictor(row, i);
+				if (Double.isNaN(x)) continue;
+				y = y + m[i]*x;
+			}
+
+
+			switch (this.regression) {
+
+				case logistic:{
+					y = 1 / (1 + Math.exp(y));
+					break;
+				}
+
+				case log:{
+					y = Math.log(y);
+					break;
+				}
+
+				case test:{
+					double v = 0;
+					for (int i = 0; i < this.predCols.length; i ++) {
+						double x = this.getPredictor(row, i);
+						if (Double.isNaN(x)) continue;
+						v = v + m[i]/x;
+					}
+					y = this.intercept[l] / (1 + v);
+					break;
+				}
+
+				case dirichlet:{
+					double x = this.getPredictor(row, targetNum);
+					if (x == 0) y = 0;
+					else {
+						x = Math.log(x / (1-x));
+						y = m[targetNum]*x + this.intercepts[l][targetNum];
+						y = 1 / (1 + Math.exp(-y));
+					}
+					break;
+				}
+
+				default: {
+					break;
+				}
+
+			}
+
+			response[targetNum] = y;
+
+		}
+
+
+		// Dirichlet: normalise alpha and take the expectation
+		if (this.regression == ResponseMode.dirichlet) {
+			double ysum = 0;
+			for (int i = 0; i < response.length; i ++) ysum += response[i];
+			double[] alpha = new double[response.length];
+			for (int i = 0; i < response.length; i ++) alpha[i] = this.sigma[l] * response[i] / ysum;
+			for (int i = 0; i < response.length; i ++) {
+				response[i] = FlexibleDirichlet.getExpectation(i, alpha, this.multinomialP, this.sigma[l]);
+			}
+		}
+
+	}
+
+
+	private double getPredictor(double[] row, int i) {
+		int col = this.predCols[i];
+		return col < 0 ? Double.NaN : row[col];
+	}
+
+
+	/**
+	 * The rows of this data, in the form expected by predictBatch
+	 * @param data
+	 * @return
+	 */
+	public static double[][] toRows(Instances data) {
+		double[][] rows = new double[data.numInstances()][];
+		for (int r = 0; r < rows.length; r ++) rows[r] = data.instance(r).toDoubleArray();
+		return rows;
+	}
+
+
+}
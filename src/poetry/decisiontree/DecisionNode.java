@@ -61,7 +61,14 @@ public class DecisionNode extends Node {
 	// Is this the left child (true child) or the (right child) false child, or the root (null)
 	protected Boolean isTrueChild;
 	
-	// The split data
+	// The split data, as a range of the rows of a feature matrix
+	protected FeatureMatrix matrix = null;
+	protected int from, to;
+	
+	// Sufficient statistics of the split data, for linear responses. Built on demand
+	protected NormalSufficientStatistics normalStats = null;
+	
+	// The split data, if it has been set directly or copied for a gaussian process
 	protected Instances splitData = null;
 	protected ResponseMode regression;
 	private regressionDistribution regressionDistribution;
@@ -93,8 +100,38 @@ public class DecisionNode extends Node {
 		
 		// Metadata token?
 		if (this.metadataTokens.containsKey("ninstances")) return Integer.parseInt(this.metadataTokens.get("ninstances"));
-		if (this.splitData == null) return 0;
-		return this.splitData.size();
+		return this.getSplitCount();
+	}
+	
+	
+	/**
+	 * Number of instances in the split data
+	 * @return
+	 */
+	protected int getSplitCount() {
+		if (this.splitData != null) return this.splitData.size();
+		if (this.matrix != null) return this.to - this.from;
+		return 0;
+	}
+	
+	
+	/**
+	 * The i-th instance at this node
+	 * @param i
+	 * @return
+	 */
+	protected Instance getSplitInstance(int i) {
+		if (this.splitData != null) return this.splitData.instance(i);
+		return this.matrix.getInstance(this.from + i);
+	}
+	
+	
+	/**
+	 * Whether this node has any split data
+	 * @return
+	 */
+	protected boolean hasSplitData() {
+		return this.splitData != null || this.matrix != null;
 	}
 	
 
@@ -292,13 +329,16 @@ public class DecisionNode extends Node {
         node.parent = null;
         node.isTrueChild = this.isTrueChild;
         node.regressionDistribution = this.regressionDistribution;
+        node.matrix = this.matrix;
+        node.from = this.from;
+        node.to = this.to;
+        node.normalStats = this.normalStats;
         try {
 			node.gp_kernel = this.gp_kernel;
 		} catch (Exception e) {
 			// TODO Auto-generated catch block
 			e.printStackTrace();
 		}
-        this.splitData = null;
         if (!isLeaf()) {
         	node.setTrueChild(children[0].copy());
         	node.setFalseChild(children[1].copy());
@@ -308,11 +348,30 @@ public class DecisionNode extends Node {
     } 
 	
 	
+	/**
+	 * Build a copy of the topology of another tree (eg. one from another chain), whose nodes use the split helper
+	 * and parameters of this node
+	 * @param src - root of the subtree to copy
+	 * @return
+	 */
+	public DecisionNode copyTopology(DecisionNode src) {
+		final DecisionNode node = new DecisionNode(treeNum, ntrees, split, slope, intercept, sigmaOrTau, multinomialP, targetAttr, predAttr, regression);
+		node.regressionDistribution = this.regressionDistribution;
+		if (!src.isLeaf()) {
+			node.setTrueChild(this.copyTopology(src.getTrueChild()));
+			node.setFalseChild(this.copyTopology(src.getFalseChild()));
+		}
+		return node;
+	}
+	
+	
 	/**
 	 * Reset split data
 	 */
 	public void resetData() {
 		this.splitData = null;
+		this.matrix = null;
+		this.normalStats = null;
 	}
 
 	
@@ -323,32 +382,48 @@ public class DecisionNode extends Node {
 	 * @return
 	 */
 	public boolean splitData(Instances preSplitData, boolean isTrainingData) {
+		FeatureMatrix matrix = this.split.getFeatureMatrix(preSplitData);
+		matrix.resetRows();
+		return this.splitRows(matrix, 0, matrix.size(), isTrainingData);
+	}
+	
+	
+	/**
+	 * Split the rows [from, to) of the feature matrix down this subtree, returns false if this or a child cannot split it
+	 * Each node partitions its range in place and passes the two halves to its children, so nothing is copied
+	 * @param matrix
+	 * @param from
+	 * @param to
+	 * @return
+	 */
+	public boolean splitRows(FeatureMatrix matrix, int from, int to, boolean isTrainingData) {
 		
 		
 		if (!this.isLeaf()) {
 			
 			// Split for left and right children
-			Instances[] splits = this.split.splitData(preSplitData, this.nodeIndex);
+			int mid = this.split.partition(matrix, from, to, this.nodeIndex);
 			
 			
 			// Valid?
-			if (splits == null) return false;
-			
-			Instances splitTrue = splits[0];
-			Instances splitFalse = splits[1];
-			
-			// Do both sides have instances?
-			//if (splitTrue.size() == 0 || splitFalse.size() == 0) return false;
-			
-			if (!children[0].splitData(splitTrue, isTrainingData)) return false;
-			if (!children[1].splitData(splitFalse, isTrainingData)) return false;
-			
-
+			if (mid < 0) return false;
 			
+			if (!children[0].splitRows(matrix, from, mid, isTrainingData)) return false;
+			if (!children[1].splitRows(matrix, mid, to, isTrainingData)) return false;
 			
 		}
 		
-		this.setSplitData(preSplitData, isTrainingData);
+		this.matrix = matrix;
+		this.from = from;
+		this.to = to;
+		this.splitData = null;
+		this.normalStats = null;
+		
+		
+		// The gaussian process is trained on a copy of the instances
+		if (this.isLeaf() && this.regression == ResponseMode.gaussianprocess && to > from) {
+			this.setSplitData(matrix.toInstances(from, to), isTrainingData);
+		}
 		
 		return true;
 		
@@ -362,6 +437,8 @@ public class DecisionNode extends Node {
 	public Instances setSplitData(Instances instances, boolean isTrainingData) {
 		
 		this.splitData = instances;
+		this.matrix = null;
+		this.normalStats = null;
 		
 		if (this.isLeaf()) {
 			
@@ -529,6 +606,26 @@ public class DecisionNode extends Node {
 	}
 	
 	
+	/**
+	 * Set the children of this node directly when restoring a stored topology, without detaching the previous children
+	 * Parents must be relinked before their children so that depths are correct. Both children are null for a leaf
+	 * @param trueChild
+	 * @param falseChild
+	 */
+	protected void relink(DecisionNode trueChild, DecisionNode falseChild) {
+		this.children[0] = trueChild;
+		this.children[1] = falseChild;
+		if (trueChild != null) {
+			trueChild.regression = this.regression;
+			trueChild.setParent(this, true);
+		}
+		if (falseChild != null) {
+			falseChild.regression = this.regression;
+			falseChild.setParent(this, false);
+		}
+	}
+	
+	
 	public void removeChildren() {
 		if (this.isLeaf()) return;
 		this.children[0].removeParent();
@@ -591,9 +688,26 @@ public class DecisionNode extends Node {
 		if (!this.isLeaf()) throw new IllegalArgumentException("Error: there is no intercept because this is not a leaf!");
 		if (this.intercept == null) return 0;
 		if (this.metadataTokens.containsKey("intercept")) return Double.parseDouble(this.metadataTokens.get("intercept"));
+		return this.intercept.getArrayValue(this.getInterceptIndex());
+	}
+	
+	
+	private int getInterceptIndex() {
 		int i = this.getTreeNum()*this.intercept.getDimension() / this.ntrees;
 		int j = this.nodeIndex;
-		return this.intercept.getArrayValue(i + j);
+		return i + j;
+	}
+	
+	private int getInterceptIndex(int k) {
+		int i = this.getTreeNum()*this.intercept.getDimension() / this.ntrees;
+		int j = this.nodeIndex*this.predAttr.size();
+		return i + j + k;
+	}
+	
+	private int getSlopeIndex(int k) {
+		int i = this.getTreeNum()*this.slope.getDimension() / this.ntrees;
+		int j = this.nodeIndex*this.predAttr.size();
+		return i + j + k;
 	}
 	
 	
@@ -602,11 +716,7 @@ public class DecisionNode extends Node {
 		if (!this.isLeaf()) throw new IllegalArgumentException("Error: there is no intercept because this is not a leaf!");
 		if (this.intercept == null) return 0;
 		if (this.metadataTokens.containsKey("intercept" + (k+1))) return Double.parseDouble(this.metadataTokens.get("intercept" + (k+1)));
-		int i = this.getTreeNum()*this.intercept.getDimension() / this.ntrees;
-		int j = this.nodeIndex*this.predAttr.size();
-		int index = i + j + k;
-		
-		return this.intercept.getArrayValue(index);
+		return this.intercept.getArrayValue(this.getInterceptIndex(k));
 	}
 	
 	
@@ -625,12 +735,31 @@ public class DecisionNode extends Node {
 		if (!this.isLeaf()) throw new IllegalArgumentException("Error: there is no slope because this is not a leaf!");
 		if (this.slope == null) return 0;
 		if (this.metadataTokens.containsKey("slope" + (k+1))) return Double.parseDouble(this.metadataTokens.get("slope" + (k+1)));
-		int i = this.getTreeNum()*this.slope.getDimension() / this.ntrees;
-		int j = this.nodeIndex*this.predAttr.size();
-		int index = i + j + k;
-		
-		
-		return this.slope.getArrayValue(index);
+		return this.slope.getArrayValue(this.getSlopeIndex(k));
+	}
+	
+	
+	/**
+	 * Whether any of the intercepts or slopes of this leaf have changed since the last accepted state
+	 * Sigma and the multinomial probabilities are shared by all leaves, and are not checked here
+	 * @return
+	 */
+	public boolean leafParametersAreDirty() {
+		if (!this.isLeaf()) return false;
+		if (this.intercept != null) {
+			if (this.intercept.isDirty(this.getInterceptIndex())) return true;
+			if (this.regression == ResponseMode.dirichlet) {
+				for (int k = 0; k < this.predAttr.size(); k ++) {
+					if (this.intercept.isDirty(this.getInterceptIndex(k))) return true;
+				}
+			}
+		}
+		if (this.slope != null) {
+			for (int k = 0; k < this.predAttr.size(); k ++) {
+				if (this.slope.isDirty(this.getSlopeIndex(k))) return true;
+			}
+		}
+		return false;
 	}
 	
 	
@@ -847,7 +976,14 @@ public class DecisionNode extends Node {
 	public double getLogLikelihood() {
 		
 		if (!this.isLeaf()) return 0;
-		if (this.splitData == null) return 0;
+		if (!this.hasSplitData()) return 0;
+		
+		// Normal: evaluate from the sufficient statistics
+		if (this.regression == ResponseMode.linear) {
+			double[] slopes = new double[this.predAttr.size()];
+			for (int i = 0; i < slopes.length; i ++) slopes[i] = this.getSlope(i);
+			return this.getNormalStatistics().getLogLikelihood(this.getIntercept(), slopes, this.getSigma());
+		}
 		
 		// Get true and predicted values
 		double[][] trueYVals = this.getTargetVals();
@@ -860,28 +996,25 @@ public class DecisionNode extends Node {
 		
     	if (sigmaVal <= 0) return Double.NEGATIVE_INFINITY;
     	
+    	// Dirichlet: response is alpha, which is normalised to sum to sigma for every instance
+    	if (this.regression == ResponseMode.dirichlet) {
+    		return FlexibleDirichlet.calcLogP(trueYVals, responseVals, probs, sigmaVal, sigmaVal);
+    	}
+    	
     	double a = -Math.log((Math.sqrt(2.0 * Math.PI) * sigmaVal));
     	double b;
-		for (int instNum = 0; instNum < this.splitData.numInstances(); instNum++) {
+		int ninstances = this.getSplitCount();
+		for (int instNum = 0; instNum < ninstances; instNum++) {
 			
 			// Likelihood 
 			double[] response = responseVals[instNum];
 			double[] trueY = trueYVals[instNum];
 			
 			
-			// Dirichlet: response is alpha
-			if (this.regression == ResponseMode.dirichlet) {
-				logP += FlexibleDirichlet.calcLogP(trueY, response, probs, sigmaVal);
-			}
-			
 			// Normal: response is mu (which happens to be the expected value)
-			else {
-				
-				// Univariate normal distribution where the predicted value is the mean
-				b = -(trueY[0] - response[0]) * (trueY[0] - response[0]) / (2.0 * sigmaVal * sigmaVal);
-				logP += a + b;
-				
-			}
+			// Univariate normal distribution where the predicted value is the mean
+			b = -(trueY[0] - response[0]) * (trueY[0] - response[0]) / (2.0 * sigmaVal * sigmaVal);
+			logP += a + b;
 			
 			
 			
@@ -947,19 +1080,28 @@ public class DecisionNode extends Node {
 	public double[][] getTargetVals() {
 		
 		if (!this.isLeaf()) return null;
-		if (this.splitData == null) return null;
+		if (!this.hasSplitData()) return null;
 		
-		double[][] trueYVals = new double[this.splitData.numInstances()][];
+		int ninstances = this.getSplitCount();
+		double[][] trueYVals = new double[ninstances][];
+		if (ninstances == 0) return trueYVals;
 		
-		for (int instNum = 0; instNum < this.splitData.numInstances(); instNum++) {
+		// Target attributes
+		Instances header = this.getSplitInstance(0).dataset();
+		Attribute[] targets = new Attribute[this.targetAttr.size()];
+		for (int targetNum = 0; targetNum < targets.length; targetNum ++) {
+			targets[targetNum] = header.attribute(this.targetAttr.get(targetNum));
+		}
+		
+		for (int instNum = 0; instNum < ninstances; instNum++) {
 			
-			Instance inst = this.splitData.instance(instNum);
+			Instance inst = this.getSplitInstance(instNum);
 			trueYVals[instNum] = new double[this.targetAttr.size()];
 			
 			// Get true y for each target
 			for (int targetNum = 0; targetNum < this.targetAttr.size(); targetNum ++) {
 				
-				Attribute target = this.splitData.attribute(this.targetAttr.get(targetNum));
+				Attribute target = targets[targetNum];
 				double trueY = inst.value(target);
 				if (Double.isNaN(trueY)) trueY = 0;
 				trueYVals[instNum][targetNum] = trueY;
@@ -971,6 +1113,39 @@ public class DecisionNode extends Node {
 		return trueYVals;
 	}
 
+	/**
+	 * Get the sufficient statistics of the target and predictors at this leaf, computing them only if the split data has changed
+	 * @return
+	 */
+	public NormalSufficientStatistics getNormalStatistics() {
+		
+		if (this.normalStats != null) return this.normalStats;
+		
+		NormalSufficientStatistics stats = new NormalSufficientStatistics(this.predAttr.size());
+		int ninstances = this.getSplitCount();
+		if (ninstances > 0) {
+			
+			// Resolve the attributes once
+			Instances header = this.getSplitInstance(0).dataset();
+			Attribute target = header.attribute(this.targetAttr.get(0));
+			Attribute[] preds = new Attribute[this.predAttr.size()];
+			for (int i = 0; i < preds.length; i ++) preds[i] = header.attribute(this.predAttr.get(i));
+			
+			double[] x = new double[preds.length];
+			for (int instNum = 0; instNum < ninstances; instNum++) {
+				Instance inst = this.getSplitInstance(instNum);
+				for (int i = 0; i < preds.length; i ++) x[i] = inst.value(preds[i]);
+				stats.add(inst.value(target), x);
+			}
+			
+		}
+		
+		this.normalStats = stats;
+		return stats;
+		
+	}
+	
+	
 	/**
 	 * Get the response values at this leaf (not necessarily the mean)
 	 * @return
@@ -978,16 +1153,17 @@ public class DecisionNode extends Node {
 	public double[][] getSlopeInterceptResponseVals() {
 		
 		if (!this.isLeaf()) return null;
-		if (this.splitData == null) return null;
+		if (!this.hasSplitData()) return null;
 		
-		double[][] predYVals = new double[this.splitData.numInstances()][];
+		int ninstances = this.getSplitCount();
+		double[][] predYVals = new double[ninstances][];
 		
-		for (int instNum = 0; instNum < this.splitData.numInstances(); instNum++) {
+		for (int instNum = 0; instNum < ninstances; instNum++) {
 			
 			predYVals[instNum] = new double[this.targetAttr.size()];
 			
 			// Get predicted y for each target
-			Instance inst = this.splitData.instance(instNum);
+			Instance inst = this.getSplitInstance(instNum);
 			double[] predY = this.getSlopeInterceptResponse(inst);
 			predYVals[instNum] = predY;
 			
@@ -1005,16 +1181,17 @@ public class DecisionNode extends Node {
 	public double[][] getPredictionVals() {
 		
 		if (!this.isLeaf()) return null;
-		if (this.splitData == null) return null;
+		if (!this.hasSplitData()) return null;
 		
-		double[][] predYVals = new double[this.splitData.numInstances()][];
+		int ninstances = this.getSplitCount();
+		double[][] predYVals = new double[ninstances][];
 		
-		for (int instNum = 0; instNum < this.splitData.numInstances(); instNum++) {
+		for (int instNum = 0; instNum < ninstances; instNum++) {
 			
 			predYVals[instNum] = new double[this.targetAttr.size()];
 			
 			// Get predicted y for each target
-			Instance inst = this.splitData.instance(instNum);
+			Instance inst = this.getSplitInstance(instNum);
 			double[] predY = this.predict(inst);
 			predYVals[instNum] = predY;
 			
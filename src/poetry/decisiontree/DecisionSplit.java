@@ -3,11 +3,13 @@ package poetry.decisiontree;
 import java.math.BigDecimal;
 import java.math.MathContext;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 
 import beast.core.parameter.IntegerParameter;
 import beast.core.parameter.RealParameter;
-import beast.core.util.Log;
 import beast.util.Randomizer;
 import poetry.util.WekaUtils;
 import weka.classifiers.trees.REPTree;
@@ -30,6 +32,23 @@ public class DecisionSplit {
 	double[] maxs;
 	int maxLeafCount;
 	
+	// Type of each covariate, and the upper bound of each nominal value's bin on [0,1]
+	boolean[] nominal;
+	double[][] nominalBins;
+	
+	// Where each node splits in the units of its covariate (threshold or nominal value index), by parameter index
+	// Only recomputed when the pointer or split point of the node changes
+	int[] compiledPointer;
+	double[] compiledSplit;
+	double[] compiledThreshold;
+	
+	// Logged split value and the significant figures it was rounded to
+	String[] compiledValue;
+	int[] compiledSf;
+	
+	// Feature matrices of the data sets which have been split, by identity
+	IdentityHashMap<Instances, FeatureMatrix> matrices;
+	
 	
 	/** 
 	 * Helper class for splitting attributes
@@ -77,6 +96,8 @@ public class DecisionSplit {
 		// Min / max values
 		this.mins = new double[this.covariates.size()];
 		this.maxs = new double[this.covariates.size()];
+		this.nominal = new boolean[this.covariates.size()];
+		this.nominalBins = new double[this.covariates.size()][];
 		for (int i = 0; i < this.covariates.size(); i ++) {
 			
 			Attribute attr = this.covariates.get(i);
@@ -90,13 +111,209 @@ public class DecisionSplit {
 				this.maxs[i] = Double.POSITIVE_INFINITY;
 			}
 			
+			
+			// Nominal bins, accumulated in the same way as they always have been so that boundaries are unchanged
+			if (attr.isNominal()) {
+				this.nominal[i] = true;
+				int nvals = attr.numValues();
+				this.nominalBins[i] = new double[nvals];
+				double cumulative = 1.0 / nvals;
+				for (int v = 0; v < nvals; v ++) {
+					this.nominalBins[i][v] = cumulative;
+					cumulative += 1.0 / nvals;
+				}
+			}
+			
+		}
+		
+		
+		// Test
+		HashSet<String> targets = new HashSet<>(this.targetFeatures);
+		for (Attribute attr : this.covariates) {
+			if (targets.contains(attr.name())) {
+				throw new IllegalArgumentException("Error: cannot split on target feature " + attr.name());
+			}
+		}
+		
+		
+		// Nothing has been compiled yet
+		int nparams = pointers.getDimension();
+		this.compiledPointer = new int[nparams];
+		this.compiledSplit = new double[nparams];
+		this.compiledThreshold = new double[nparams];
+		this.compiledValue = new String[nparams];
+		this.compiledSf = new int[nparams];
+		Arrays.fill(this.compiledPointer, -1);
+		
+		this.matrices = new IdentityHashMap<>();
+		
+	}
+	
+	
+	/**
+	 * Get the feature matrix of this data, building it only the first time this data is split
+	 * The data must not be modified after it has been split
+	 * @param data
+	 * @return
+	 */
+	public FeatureMatrix getFeatureMatrix(Instances data) {
+		FeatureMatrix matrix = this.matrices.get(data);
+		if (matrix == null || matrix.size() != data.numInstances()) {
+			
+			// Usually there is only training and test data
+			if (this.matrices.size() >= 4) this.matrices.clear();
+			matrix = new FeatureMatrix(data, this.covariates);
+			this.matrices.put(data, matrix);
+		}
+		return matrix;
+	}
+	
+	
+	/**
+	 * Partition the rows [from, to) of the feature matrix in place, so that the rows which satisfy the split of this node come first
+	 * @param matrix
+	 * @param from
+	 * @param to
+	 * @param index - node index
+	 * @return the first row of the false child, or -1 if the split is impossible
+	 */
+	public int partition(FeatureMatrix matrix, int from, int to, int index) {
+		
+		int paramIndex = this.getParamIndex(index);
+		if (this.pointers.getDimension() <= paramIndex) return -1;
+		
+		// Which attribute is being split on
+		int attrIndex = (int) this.pointers.getArrayValue(paramIndex);
+		double threshold = this.getThreshold(paramIndex, attrIndex);
+		if (this.nominal[attrIndex]) {
+			return matrix.partitionNominal(attrIndex, (int) threshold, from, to);
+		}else {
+			return matrix.partitionNumeric(attrIndex, threshold, from, to);
+		}
+		
+	}
+	
+	
+	/**
+	 * Whether the attribute pointer or split point of this node has changed since the last accepted state
+	 * @param index - node index
+	 * @return
+	 */
+	public boolean isDirty(int index) {
+		int paramIndex = this.getParamIndex(index);
+		if (paramIndex < 0 || this.pointers.getDimension() <= paramIndex) return true;
+		return this.pointers.isDirty(paramIndex) || this.splits.isDirty(paramIndex);
+	}
+	
+	
+	/**
+	 * The covariate which this node splits on
+	 * @param index - node index
+	 * @return the attribute, or null if there are no split parameters for this node
+	 */
+	public Attribute getSplitAttribute(int index) {
+		int paramIndex = this.getParamIndex(index);
+		if (paramIndex < 0 || this.pointers.getDimension() <= paramIndex) return null;
+		return this.covariates.get((int) this.pointers.getArrayValue(paramIndex));
+	}
+	
+	
+	/**
+	 * Where this node splits. For numeric covariates this is the threshold (true if value <= threshold)
+	 * and for nominal covariates it is the index of the value (true if equal)
+	 * @param index - node index
+	 * @return
+	 */
+	public double getSplitThreshold(int index) {
+		int paramIndex = this.getParamIndex(index);
+		int attrIndex = (int) this.pointers.getArrayValue(paramIndex);
+		return this.getThreshold(paramIndex, attrIndex);
+	}
+	
+	
+	/**
+	 * Where the node with these split parameters splits, in the units of the covariate
+	 * This is compiled from the pointer and split point the first time it is needed, and again whenever either of them changes
+	 * @param paramIndex
+	 * @param attrIndex - the value of the pointer
+	 * @return the threshold if numeric, or the index of the value if nominal
+	 */
+	private double getThreshold(int paramIndex, int attrIndex) {
+		
+		double splitPoint = this.splits.getArrayValue(paramIndex);
+		if (paramIndex >= this.compiledPointer.length) this.growCompiled(paramIndex+1);
+		if (this.compiledPointer[paramIndex] == attrIndex && 
+				Double.doubleToRawLongBits(this.compiledSplit[paramIndex]) == Double.doubleToRawLongBits(splitPoint)) {
+			return this.compiledThreshold[paramIndex];
+		}
+		
+		
+		// Nominal: index of the value. Numeric: normalise splitPoint into [min,max] range
+		double threshold;
+		if (this.nominal[attrIndex]) {
+			threshold = this.getNominalIndex(splitPoint, attrIndex);
+		}else {
+			double min = this.mins[attrIndex];
+			double max = this.maxs[attrIndex];
+			threshold = splitPoint*(max - min) + min;
 		}
 		
+		this.compiledPointer[paramIndex] = attrIndex;
+		this.compiledSplit[paramIndex] = splitPoint;
+		this.compiledThreshold[paramIndex] = threshold;
+		this.compiledValue[paramIndex] = null;
+		return threshold;
+		
+	}
+	
+	
+	private void growCompiled(int nparams) {
+		int from = this.compiledPointer.length;
+		this.compiledPointer = Arrays.copyOf(this.compiledPointer, nparams);
+		this.compiledSplit = Arrays.copyOf(this.compiledSplit, nparams);
+		this.compiledThreshold = Arrays.copyOf(this.compiledThreshold, nparams);
+		this.compiledValue = Arrays.copyOf(this.compiledValue, nparams);
+		this.compiledSf = Arrays.copyOf(this.compiledSf, nparams);
+		Arrays.fill(this.compiledPointer, from, nparams, -1);
+	}
+	
+	
+	/**
+	 * Index of the split parameters of this node
+	 * Since leaves do not have split parameters, the vectors are shifted by leafCount
+	 * @param index
+	 * @return
+	 */
+	private int getParamIndex(int index) {
+		int treeAddon = this.tree.getTreeNum() * (this.maxLeafCount-1);
+		int nleaves = tree.getLeafCount();
+		return index - nleaves + treeAddon;
+	}
+	
+	
+	/**
+	 * Index the pointer (from double to integer)
+	 * eg. if there are 5 values, then [0,0.2) -> 0, [0.2,0.4) -> 1, etc.
+	 * @param splitPoint
+	 * @param attrIndex
+	 * @return the index, or -1 if splitPoint is not below the last bin
+	 */
+	private int getNominalIndex(double splitPoint, int attrIndex) {
+		double[] bins = this.nominalBins[attrIndex];
+		int nvals = bins.length;
+		if (nvals == 0 || !(splitPoint < bins[nvals-1])) return -1;
+		
+		// Start from the bin which splitPoint would fall into without rounding error, and find the first bin above it
+		int i = Math.max(0, Math.min(nvals-1, (int) (splitPoint * nvals)));
+		while (i > 0 && splitPoint < bins[i-1]) i--;
+		while (splitPoint >= bins[i]) i++;
+		return i;
 	}
 	
 	
 	/**
 	 * Split the data and return the split, or return null if split is impossible
+	 * This copies the instances, so use partition to split a whole data set down the tree
 	 * @param preSplit
 	 * @param index
 	 * @return
@@ -105,11 +322,7 @@ public class DecisionSplit {
 		
 		
 		
-		// Since leaves do not have split parameters, the vectors are shifted by leafCount
-		int treeAddon = this.tree.getTreeNum() * (this.maxLeafCount-1);
-		int nleaves = tree.getLeafCount();
-		int paramIndex = index - nleaves + treeAddon;
-		
+		int paramIndex = this.getParamIndex(index);
 		if (this.pointers.getDimension() <= paramIndex) return null;
 
 		
@@ -118,16 +331,6 @@ public class DecisionSplit {
 		Attribute splitAttr = this.covariates.get(attrIndex);
 		
 		
-		// Test
-		for (String target : this.targetFeatures) {
-			if (splitAttr.name().equals(target)) {
-				Log.warning("Fatal error: splitting on target feature! " + target);
-				System.exit(0);
-			}
-		}
-		
-		
-		
 		// If attribute is missing, return null
 		//int attrNum = WekaUtils.getIndexOfColumn(preSplit, splitAttr.name());
 		//if (attrNum == -1) {
@@ -135,38 +338,8 @@ public class DecisionSplit {
 		//}
 		
 		// Where to split
-		double splitPoint = this.splits.getArrayValue(paramIndex);
-		
-		
-		// Nominal split
-		int splitPointNominal = -1;
-		if (splitAttr.isNominal()) {
-			
-			// How many values?
-			int nvals = splitAttr.numValues();
-			
-			// Index the pointer (from double to integer)
-			// eg. if there are 5 values, then [0,0.2) -> 0, [0.2,0.4) -> 1, etc.
-			double cumulative = 1.0 / nvals;
-			for (int i = 0; i < nvals; i ++) {
-				if (splitPoint < cumulative){
-					splitPointNominal = i;
-					break;
-				}
-				cumulative += 1.0 / nvals;
-			}
-			
-		}
-		
-		// Numeric split
-		else {
-			
-			// Normalise splitPoint into [min,max] range
-			double min = this.mins[attrIndex];
-			double max = this.maxs[attrIndex];
-			splitPoint = splitPoint*(max - min) + min;
-			
-		}
+		double splitPoint = this.getThreshold(paramIndex, attrIndex);
+		int splitPointNominal = this.nominal[attrIndex] ? (int) splitPoint : -1;
 		
 		
 		// Do the split
@@ -181,7 +354,7 @@ public class DecisionSplit {
 			boolean success;
 			
 			// Nominal split
-			if (splitAttr.isNominal()) {
+			if (this.nominal[attrIndex]) {
 				int value = splitAttr.indexOfValue(inst.stringValue(splitAttr));
 				success = value == splitPointNominal;
 			}
@@ -218,7 +391,7 @@ public class DecisionSplit {
 	 */
 	public String getAttributeName(int nodeIndex) {
 		
-		int paramIndex = nodeIndex - tree.getLeafCount();
+		int paramIndex = this.getParamIndex(nodeIndex);
 		
 		// What attribute is being split on
 		int attrIndex = (int) this.pointers.getArrayValue(paramIndex);
@@ -237,51 +410,27 @@ public class DecisionSplit {
 	 */
 	public String getSplitValue(int nodeIndex, int sf) {
 		
-		int paramIndex = nodeIndex - tree.getLeafCount();
+		int paramIndex = this.getParamIndex(nodeIndex);
 		
 		// What attribute is being split on
 		int attrIndex = (int) this.pointers.getArrayValue(paramIndex);
 		Attribute splitAttr = this.covariates.get(attrIndex);
 		
 		
-		// Where to split
-		double splitPoint = this.splits.getArrayValue(paramIndex);
+		// Where to split. The value is only formatted again if the split has changed
+		double splitPoint = this.getThreshold(paramIndex, attrIndex);
+		if (this.compiledValue[paramIndex] != null && this.compiledSf[paramIndex] == sf) return this.compiledValue[paramIndex];
+		String value;
 		
 		
 		// Nominal split
-		if (splitAttr.isNominal()) {
-			
-			int splitPointNominal = -1;
-			
-			// How many values?
-			int nvals = splitAttr.numValues();
-			
-			// Index the pointer (from double to integer)
-			// eg. if there are 5 values, then [0,0.2) -> 0, [0.2,0.4) -> 1, etc.
-			double cumulative = 1.0 / nvals;
-			for (int i = 0; i < nvals; i ++) {
-				if (splitPoint < cumulative){
-					splitPointNominal = i;
-					break;
-				}
-				cumulative += 1.0 / nvals;
-			}
-			
-			
-			// Value
-			return splitAttr.value(splitPointNominal);
-			
+		if (this.nominal[attrIndex]) {
+			value = splitAttr.value((int) splitPoint);
 		}
 		
 		// Numeric split
 		else {
 			
-			// Normalise splitPoint into [min,max] range
-			double min = this.mins[attrIndex];
-			double max = this.maxs[attrIndex];
-			splitPoint = splitPoint*(max - min) + min;
-			
-			
 			// Rounding to sf
 			if (sf >= 0) {
 				BigDecimal bd = new BigDecimal(splitPoint);
@@ -289,11 +438,14 @@ public class DecisionSplit {
 				splitPoint = bd.doubleValue();
 			}
 			
-			
-			return "" + splitPoint;
+			value = "" + splitPoint;
 			
 		}
 		
+		this.compiledValue[paramIndex] = value;
+		this.compiledSf[paramIndex] = sf;
+		return value;
+		
 	}
 
 
@@ -311,10 +463,8 @@ public class DecisionSplit {
 		
 		
 		// What attribute is being split on
-		int attrIndex = (int) this.pointers.getArrayValue(nodeIndex - tree.getLeafCount());
-		Attribute splitAttr = this.covariates.get(attrIndex);
-		
-		String relationship = splitAttr.isNominal() ? " == " : " <= ";
+		int attrIndex = (int) this.pointers.getArrayValue(this.getParamIndex(nodeIndex));
+		String relationship = this.nominal[attrIndex] ? " == " : " <= ";
 		return attr + relationship + val;
 			
 		
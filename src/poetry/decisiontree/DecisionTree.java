@@ -2,8 +2,10 @@ package poetry.decisiontree;
 
 import java.io.PrintStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.w3c.dom.Node;
 
@@ -26,13 +28,37 @@ public class DecisionTree extends StateNode implements DecisionTreeInterface  {
 	
 	int treeNum = 0;
 	DecisionNode root;
-	DecisionNode stored_root;
 	List<DecisionNode> nodes;
-	List<DecisionNode> stored_nodes;
+	
+	// Topology as arrays indexed by node number: the nodes, and the numbers of their true and false children (-1 for leaves)
+	// Stored with System.arraycopy and swapped back on restore, so that storing the tree does not copy any nodes
+	int nodeCount, storedNodeCount;
+	DecisionNode[] nodeArray, storedNodeArray;
+	int[] trueChildren, storedTrueChildren;
+	int[] falseChildren, storedFalseChildren;
+	
+	// Numbers of the cherries (internal nodes whose children are both leaves), kept alongside the topology arrays
+	int[] cherries;
+	int cherryCount;
+	
+	// Post order traversal, reused between resets
+	DecisionNode[] postOrder;
+	
+	// Nodes which have been removed from the tree, for reuse by operators instead of creating new ones
+	DecisionNode[] pool = new DecisionNode[0];
+	int poolSize = 0;
 	DecisionSplit split;
 	int nattr;
 	ResponseMode regression;
 	
+	// Changes whenever the topology or node numbering changes. Versions are never reused
+	private static final AtomicLong versions = new AtomicLong();
+	long structureVersion;
+	long storedStructureVersion;
+	
+	// Changes whenever restore relinks the nodes, after which the row ranges of the nodes cannot be trusted
+	long relinkVersion;
+	
 	
 
 	@Override
@@ -96,8 +122,164 @@ public class DecisionTree extends StateNode implements DecisionTreeInterface  {
 	 * Refreshes the node numbering list
 	 */
 	public void reset() {
-		this.nodes = this.listNodes(this.root);
-		this.updateNodeIndices(this.nodes);
+		this.encodeTopology();
+		this.structureVersion = versions.incrementAndGet();
+	}
+	
+	
+	/**
+	 * Number the nodes in the same order as listNodes, and write the topology into the node and child index arrays
+	 * The arrays and node list are reused, so this does not create any objects unless the tree has outgrown them
+	 */
+	protected void encodeTopology() {
+		
+		this.nodeCount = this.root.getNodeCount();
+		if (this.nodeArray == null || this.nodeArray.length < this.nodeCount) {
+			int capacity = Math.max(this.nodeCount, this.nodeArray == null ? 0 : 2*this.nodeArray.length);
+			this.nodeArray = new DecisionNode[capacity];
+			this.trueChildren = new int[capacity];
+			this.falseChildren = new int[capacity];
+		}
+		if (this.postOrder == null || this.postOrder.length < this.nodeCount) this.postOrder = new DecisionNode[this.nodeArray.length];
+		
+		
+		// Leaves first, then internal, then root. The root is last in post order
+		DecisionTree.getNodesPostOrder(this.root, this.postOrder, 0);
+		int pos = 0;
+		for (int i = 0; i < this.nodeCount; i ++) {
+			if (this.postOrder[i].isLeaf()) this.nodeArray[pos++] = this.postOrder[i];
+		}
+		for (int i = 0; i < this.nodeCount-1; i ++) {
+			if (!this.postOrder[i].isLeaf()) this.nodeArray[pos++] = this.postOrder[i];
+		}
+		if (!this.root.isLeaf()) this.nodeArray[pos++] = this.root;
+		Arrays.fill(this.postOrder, 0, this.nodeCount, null);
+		
+		
+		if (this.nodes == null) this.nodes = new ArrayList<>(this.nodeArray.length);
+		this.nodes.clear();
+		for (int i = 0; i < this.nodeCount; i ++) {
+			this.nodeArray[i].setIndex(i);
+			this.nodes.add(this.nodeArray[i]);
+		}
+		for (int i = 0; i < this.nodeCount; i ++) {
+			DecisionNode node = this.nodeArray[i];
+			this.trueChildren[i] = node.isLeaf() ? -1 : node.getTrueChild().getIndex();
+			this.falseChildren[i] = node.isLeaf() ? -1 : node.getFalseChild().getIndex();
+		}
+		this.updateCherries();
+		
+		// Do not hold on to nodes which have been removed
+		Arrays.fill(this.nodeArray, this.nodeCount, this.nodeArray.length, null);
+		
+	}
+	
+	
+	/**
+	 * Find the cherries from the child index arrays
+	 */
+	protected void updateCherries() {
+		if (this.cherries == null || this.cherries.length < this.trueChildren.length) this.cherries = new int[this.trueChildren.length];
+		int nleaves = (this.nodeCount+1) / 2;
+		this.cherryCount = 0;
+		for (int i = nleaves; i < this.nodeCount; i ++) {
+			if (this.trueChildren[i] < nleaves && this.falseChildren[i] < nleaves) this.cherries[this.cherryCount++] = i;
+		}
+	}
+	
+	
+	/**
+	 * Number of cherries (internal nodes whose children are both leaves)
+	 * @return
+	 */
+	public int getCherryCount() {
+		return this.cherryCount;
+	}
+	
+	
+	/**
+	 * The i-th cherry
+	 * @param i
+	 * @return
+	 */
+	public DecisionNode getCherry(int i) {
+		return this.nodeArray[this.cherries[i]];
+	}
+	
+	
+	/**
+	 * Keep a node which has been removed from the tree, so that it can be reused
+	 * @param node
+	 */
+	public void recycleNode(DecisionNode node) {
+		if (this.poolSize == this.pool.length) this.pool = Arrays.copyOf(this.pool, Math.max(4, 2*this.pool.length));
+		this.pool[this.poolSize++] = node;
+	}
+	
+	
+	/**
+	 * Take a node which was removed from the tree, as a leaf. Its data is left as it is, because a rejected step 
+	 * may put it back into the tree. The data is replaced when its new parent is partitioned
+	 * @return the node, or null if there are none
+	 */
+	public DecisionNode reuseNode() {
+		if (this.poolSize == 0) return null;
+		DecisionNode node = this.pool[--this.poolSize];
+		this.pool[this.poolSize] = null;
+		node.removeChildren();
+		return node;
+	}
+	
+	
+	/**
+	 * Drop any recycled nodes which are back in the tree after a restore
+	 */
+	protected void prunePool() {
+		int n = 0;
+		for (int i = 0; i < this.poolSize; i ++) {
+			DecisionNode node = this.pool[i];
+			if (node.getParent() != null || node == this.root) continue;
+			this.pool[n++] = node;
+		}
+		Arrays.fill(this.pool, n, this.poolSize, null);
+		this.poolSize = n;
+	}
+	
+	
+	/**
+	 * Rebuild the tree from the node and child index arrays. Nodes are numbered in post order with the root last,
+	 * so parents are relinked before their children
+	 */
+	protected void decodeTopology() {
+		this.nodes.clear();
+		for (int i = 0; i < this.nodeCount; i ++) this.nodes.add(this.nodeArray[i]);
+		this.root = this.nodeArray[this.nodeCount-1];
+		this.root.removeParent();
+		for (int i = this.nodeCount-1; i >= 0; i --) {
+			DecisionNode node = this.nodeArray[i];
+			node.relink(this.trueChildren[i] < 0 ? null : this.nodeArray[this.trueChildren[i]], 
+						this.falseChildren[i] < 0 ? null : this.nodeArray[this.falseChildren[i]]);
+			node.setIndex(i);
+		}
+		this.updateCherries();
+	}
+	
+	
+	/**
+	 * Version of the tree structure, which changes whenever the tree is reset and is restored on reject
+	 * @return
+	 */
+	public long getStructureVersion() {
+		return this.structureVersion;
+	}
+	
+	
+	/**
+	 * Version of the node links, which changes whenever restore relinks the nodes
+	 * @return
+	 */
+	public long getRelinkVersion() {
+		return this.relinkVersion;
 	}
 	
 	
@@ -184,20 +366,21 @@ public class DecisionTree extends StateNode implements DecisionTreeInterface  {
 
 	@Override
 	public void assignTo(StateNode other) {
-		// TODO Auto-generated method stub
-		
+		other.assignFrom(this);
 	}
 
+	/**
+	 * Copy the topology of another tree. The nodes of this tree keep using this tree's splits and parameters
+	 */
 	@Override
 	public void assignFrom(StateNode other) {
-		// TODO Auto-generated method stub
-		
+		DecisionTree tree = (DecisionTree) other;
+		this.setRoot(this.root.copyTopology(tree.getRoot()));
 	}
 
 	@Override
 	public void assignFromFragile(StateNode other) {
-		// TODO Auto-generated method stub
-		
+		this.assignFrom(other);
 	}
 
 	/**
@@ -244,21 +427,48 @@ public class DecisionTree extends StateNode implements DecisionTreeInterface  {
 
 	@Override
 	protected void store() {
-		this.stored_root = this.root.copy();
-		this.stored_nodes = this.listNodes(stored_root);
-		this.updateNodeIndices(this.stored_nodes);
+		if (this.storedNodeArray == null || this.storedNodeArray.length < this.nodeCount) {
+			this.storedNodeArray = new DecisionNode[this.nodeArray.length];
+			this.storedTrueChildren = new int[this.nodeArray.length];
+			this.storedFalseChildren = new int[this.nodeArray.length];
+		}
+		System.arraycopy(this.nodeArray, 0, this.storedNodeArray, 0, this.nodeCount);
+		System.arraycopy(this.trueChildren, 0, this.storedTrueChildren, 0, this.nodeCount);
+		System.arraycopy(this.falseChildren, 0, this.storedFalseChildren, 0, this.nodeCount);
+		this.storedNodeCount = this.nodeCount;
+		this.storedStructureVersion = this.structureVersion;
 	}
 
 	@Override
 	public void restore() {
 		
-		List<DecisionNode> tmp = this.stored_nodes;
-		this.stored_nodes = this.nodes;
-		this.nodes = tmp;
+		// Only relink the nodes if the topology has changed since it was stored
+		if (this.structureVersion != this.storedStructureVersion) {
 		
-		DecisionNode tmp2 = this.stored_root;
-		this.stored_root = this.root;
-		this.root = tmp2;
+			DecisionNode[] tmp = this.storedNodeArray;
+			this.storedNodeArray = this.nodeArray;
+			this.nodeArray = tmp;
+			
+			int[] tmp1 = this.storedTrueChildren;
+			this.storedTrueChildren = this.trueChildren;
+			this.trueChildren = tmp1;
+			tmp1 = this.storedFalseChildren;
+			this.storedFalseChildren = this.falseChildren;
+			this.falseChildren = tmp1;
+			
+			int tmp2 = this.storedNodeCount;
+			this.storedNodeCount = this.nodeCount;
+			this.nodeCount = tmp2;
+			
+			this.decodeTopology();
+			this.prunePool();
+			this.relinkVersion = versions.incrementAndGet();
+			
+		}
+		
+		long tmp3 = this.storedStructureVersion;
+		this.storedStructureVersion = this.structureVersion;
+		this.structureVersion = tmp3;
 		
 		//hasStartedEditing = false;
 	}
@@ -390,11 +600,32 @@ public class DecisionTree extends StateNode implements DecisionTreeInterface  {
 		return this;
 	}
 
+	/**
+	 * Predict a single instance by walking the nodes. Compiling the tree is only worthwhile for batches, see predictBatch
+	 * @param inst
+	 * @return
+	 */
 	public double[] predict(Instance inst) {
 		return this.root.predict(inst);
 	}
 	
 	
+	/**
+	 * Flatten the tree and its current parameters into arrays, for making predictions on data with this header
+	 * @param header
+	 * @return
+	 */
+	public CompiledDecisionTree compile(Instances header) {
+		return new CompiledDecisionTree(this, header);
+	}
+	
+	
+	@Override
+	public double[][] predictBatch(Instances header, double[][] rows) {
+		return this.compile(header).predictBatch(rows);
+	}
+	
+	
 	/**
 	 * Find the leaf corresponding to this instance
 	 * @param inst - a single instance in Instances obj
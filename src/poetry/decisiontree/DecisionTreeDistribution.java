@@ -2,8 +2,13 @@ package poetry.decisiontree;
 
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.IntConsumer;
 
 import org.apache.commons.math3.stat.correlation.PearsonsCorrelation;
 
@@ -18,6 +23,7 @@ import beast.core.parameter.RealParameter;
 import beast.core.util.Log;
 import beast.util.Randomizer;
 import beast.util.Transform;
+import poetry.util.ReplicateContext;
 import poetry.util.WekaUtils;
 import weka.core.Attribute;
 import weka.core.Instance;
@@ -65,6 +71,9 @@ public class DecisionTreeDistribution extends Distribution {
 	
 	final public Input<RealParameter> shapeInput = new Input<>("shape", "Dirichlet shape on the number of instances at each leaf. Set to 0 for uniform.", Validate.REQUIRED);
 	
+	final public Input<Integer> threadsInput = new Input<>("threads", "Number of threads to evaluate the trees of a random forest on. "
+			+ "Each tree has its own training data so the result does not depend on the number of threads (default 1)", 1);
+	
 	
 	WekaData wekaData;
 	List<String> covariates;
@@ -100,6 +109,32 @@ public class DecisionTreeDistribution extends Distribution {
 	// Helper class for splitting
 	DecisionSplit[] splits;
 	
+	// Cached log-likelihood of each leaf, per tree, and the tree structure they were calculated for
+	double[][] leafLogP, storedLeafLogP;
+	long[] cachedVersion, storedCachedVersion;
+	
+	// Whether the row ranges at the nodes of each tree are consistent with its training data feature matrix,
+	// and the relink version of the tree when they were last made so
+	boolean[] rowsValid;
+	long[] rowsVersion;
+	
+	// Whether a subtree was re-partitioned during this step, which cannot be undone on reject
+	boolean[] repartitioned;
+	
+	// Log-likelihood of each tree, filled in by the worker threads
+	double[] treeLogP;
+	
+	// Evaluates the trees of a forest in parallel. Null if there is only one thread or one tree
+	ForkJoinPool pool;
+	
+	// One pool per thread count, shared by every distribution (eg. the chains of a TemperedDecisionTreeMCMC)
+	// The workers are daemon threads so the pools do not need to be shut down
+	private static final ConcurrentHashMap<Integer, ForkJoinPool> pools = new ConcurrentHashMap<>();
+	
+	// The training and test data as rows for CompiledDecisionTree. Built the first time they are needed
+	double[][][] trainingRows;
+	double[][] testRows;
+	
 	
 	@Override
     public void initAndValidate() {
@@ -205,6 +240,25 @@ public class DecisionTreeDistribution extends Distribution {
 		this.initTrees();
 		
 		
+		// Likelihood cache
+		this.leafLogP = new double[this.ntrees][this.maxLeafCount];
+		this.storedLeafLogP = new double[this.ntrees][this.maxLeafCount];
+		this.cachedVersion = new long[this.ntrees];
+		this.storedCachedVersion = new long[this.ntrees];
+		Arrays.fill(this.cachedVersion, Long.MIN_VALUE);
+		Arrays.fill(this.storedCachedVersion, Long.MIN_VALUE);
+		this.rowsValid = new boolean[this.ntrees];
+		this.rowsVersion = new long[this.ntrees];
+		this.repartitioned = new boolean[this.ntrees];
+		this.treeLogP = new double[this.ntrees];
+		
+		
+		// Thread pool
+		if (threadsInput.get() <= 0) throw new IllegalArgumentException("Please ensure that threads > 0");
+		int nthreads = Math.min(threadsInput.get(), this.ntrees);
+		this.pool = nthreads > 1 ? pools.computeIfAbsent(nthreads, ForkJoinPool::new) : null;
+		
+		
 		// Set initial values 
 		for (int i = 0; i < splitPoints.getDimension(); i ++) {
 			splitPoints.setValue(i, Randomizer.nextDouble());
@@ -585,60 +639,218 @@ public class DecisionTreeDistribution extends Distribution {
 	 public double calculateLogP() {
 		 
 		 logP = 0;
+		 Arrays.fill(this.repartitioned, false);
+		 
+		 // Sigma and the multinomial probabilities are shared by every leaf
+		 boolean leafParamsDirty = this.sigmaOrTau.somethingIsDirty() || (this.multinomialP != null && this.multinomialP.somethingIsDirty());
+		 
+		 // The trees are independent, so they can be evaluated on separate threads
+		 DecisionTree[] trees = this.treeI.getTrees();
+		 this.forEachTree(trees, i -> this.treeLogP[i] = this.calculateTreeLogP(trees[i], leafParamsDirty));
 		 
+		 // Sum in tree order, so the result does not depend on the number of threads
+		 for (int i = 0; i < trees.length; i ++) {
+			 logP += this.treeLogP[i];
+			 if (logP == Double.NEGATIVE_INFINITY) return logP;
+		 }
+		 
+		return logP;
 		
+		
+	 }
+	 
+	 
+	 /**
+	  * Log density of a single tree: the Dirichlet prior on the number of instances per leaf and the likelihood at the leaves
+	  * Only touches the state belonging to this tree, so that trees can be evaluated in parallel
+	  * @param tree
+	  * @param leafParamsDirty - whether a parameter shared by all leaves has changed
+	  * @return
+	  */
+	 protected double calculateTreeLogP(DecisionTree tree, boolean leafParamsDirty) {
 		 
-		 for (DecisionTree tree : this.treeI.getTrees()) {
+		 //Log.warning("tree size " + tree.getLeafCount());
 		 
-			 //Log.warning("tree size " + tree.getLeafCount());
-			 
-			 // Tree size exceeded?
-			 if (tree.getLeafCount() > this.maxLeafCount) {
-				 //Log.warning("too big");
-				 logP = Double.NEGATIVE_INFINITY;
-				 return logP;
+		 // Tree size exceeded?
+		 if (tree.getLeafCount() > this.maxLeafCount) {
+			 //Log.warning("too big");
+			 return Double.NEGATIVE_INFINITY;
+		 }
+		 
+		 // Ensure that the split is valid, and update the likelihoods of the leaves which have changed
+		 Instances data = this.trainingData[tree.getTreeNum()];
+		 boolean valid = this.updateLeafLikelihoods(tree, data, leafParamsDirty);
+		 if (!valid) {
+			 Log.warning("invalid");
+			 return Double.NEGATIVE_INFINITY;
+		 }
+		 
+		 
+		 // Dirichlet distribution on instances per leaf
+		 double treeLogP = 0;
+		 double alpha = shapeInput.get().getArrayValue();
+		 double sumAlpha = alpha * tree.getLeafCount();
+		 int ninstances = data.size() + tree.getLeafCount(); // Pseudocount 
+		 for (int i = 0; i < tree.getLeafCount(); i++) {
+			 int n = tree.getNode(i).getNumInstances() + 1;
+			 double pinstances = 1.0 * n / ninstances;
+			 if (n < this.minInstancesPerLeaf || n == 0) {
+				 return Double.NEGATIVE_INFINITY;
 			 }
-			 
-			 // Ensure that the split is valid
-			 Instances data = this.trainingData[tree.getTreeNum()];
-			 boolean valid = tree.splitData(data, true);
-			 if (!valid) {
-				 Log.warning("invalid");
-				 logP = Double.NEGATIVE_INFINITY;
-				 return logP;
+			 treeLogP += (alpha - 1) * Math.log(pinstances);
+		 }
+		 treeLogP -= tree.getLeafCount() * org.apache.commons.math.special.Gamma.logGamma(alpha);
+		 treeLogP += org.apache.commons.math.special.Gamma.logGamma(sumAlpha);
+		 
+		 
+		 // Regression likelihood at the leaves
+		 double[] leafLL = this.leafLogP[tree.getTreeNum()];
+		 for (int nodeNum = 0; nodeNum < tree.getLeafCount(); nodeNum ++) {
+			 treeLogP += leafLL[nodeNum];
+		 }
+		 
+		 return treeLogP;
+		 
+	 }
+	 
+	 
+	 /**
+	  * Run a task for each tree, on the thread pool if there is one
+	  * @param trees
+	  * @param task - takes the position of the tree in the array
+	  */
+	 protected void forEachTree(DecisionTree[] trees, IntConsumer task) {
+		 
+		 if (this.pool == null || trees.length == 1) {
+			 for (int i = 0; i < trees.length; i ++) task.accept(i);
+			 return;
+		 }
+		 
+		 List<ForkJoinTask<?>> tasks = new ArrayList<>(trees.length);
+		 for (int i = 0; i < trees.length; i ++) {
+			 final int treeIndex = i;
+			 tasks.add(this.pool.submit(ReplicateContext.wrap(() -> task.accept(treeIndex))));
+		 }
+		 
+		 // Rethrows any exception from the workers
+		 for (ForkJoinTask<?> t : tasks) t.join();
+		 
+	 }
+	 
+	 
+	 /**
+	  * Split the training data down the tree and calculate the log-likelihood of each leaf, reusing the cached values where possible
+	  * If the tree structure has not changed since the cache was made, only the subtrees below a changed split are re-partitioned,
+	  * and only the leaves whose instances or parameters have changed are re-scored
+	  * Gaussian process leaves are retrained on every split, so they are always recalculated in full
+	  * @param tree
+	  * @param data
+	  * @param leafParamsDirty - whether a parameter shared by all leaves has changed
+	  * @return false if the split is invalid
+	  */
+	 protected boolean updateLeafLikelihoods(DecisionTree tree, Instances data, boolean leafParamsDirty) {
+		 
+		 int treeNum = tree.getTreeNum();
+		 double[] leafLL = this.leafLogP[treeNum];
+		 FeatureMatrix matrix = this.splits[treeNum].getFeatureMatrix(data);
+		 boolean cached = this.responseMode != ResponseMode.gaussianprocess && this.cachedVersion[treeNum] == tree.getStructureVersion();
+		 
+		 
+		 // Split the whole tree if the node ranges cannot be trusted, including after the tree has been relinked by a restore
+		 if (!cached || !this.rowsValid[treeNum] || this.rowsVersion[treeNum] != tree.getRelinkVersion() || tree.getRoot().matrix != matrix) {
+			 this.repartitioned[treeNum] = true;
+			 this.rowsValid[treeNum] = false;
+			 if (!tree.splitData(data, true)) {
+				 this.cachedVersion[treeNum] = Long.MIN_VALUE;
+				 return false;
 			 }
+			 this.rowsValid[treeNum] = true;
+			 this.rowsVersion[treeNum] = tree.getRelinkVersion();
 			 
-			 
-			 // Dirichlet distribution on instances per leaf
-			 double alpha = shapeInput.get().getArrayValue();
-			 double sumAlpha = alpha * tree.getLeafCount();
-			 int ninstances = data.size() + tree.getLeafCount(); // Pseudocount 
-			 for (int i = 0; i < tree.getLeafCount(); i++) {
-				 int n = tree.getNode(i).getNumInstances() + 1;
-				 double pinstances = 1.0 * n / ninstances;
-				 if (n < this.minInstancesPerLeaf || n == 0) {
-					 logP = Double.NEGATIVE_INFINITY;
-					 return logP;
+			 // Score every leaf
+			 if (!cached) {
+				 for (int nodeNum = 0; nodeNum < tree.getLeafCount(); nodeNum ++) {
+					 leafLL[nodeNum] = tree.getNode(nodeNum).getLogLikelihood();
 				 }
-				 logP += (alpha - 1) * Math.log(pinstances);
-				 logP -= org.apache.commons.math.special.Gamma.logGamma(alpha);
+				 this.cachedVersion[treeNum] = tree.getStructureVersion();
+				 return true;
 			 }
-			 logP += org.apache.commons.math.special.Gamma.logGamma(sumAlpha);
 			 
-			 
-			 // Calculate regression likelihood at the leaves
-			 for (int nodeNum = 0; nodeNum < tree.getLeafCount(); nodeNum ++) {
-				 DecisionNode leaf = tree.getNode(nodeNum);
-				 double ll = leaf.getLogLikelihood();
-				 logP += ll;
+			 // The partition is up to date, but the leaf parameters may still have changed
+			 return this.update(tree.getRoot(), matrix, leafLL, treeNum, false, leafParamsDirty, false);
+		 }
+		 
+		 return this.update(tree.getRoot(), matrix, leafLL, treeNum, false, leafParamsDirty, true);
+		 
+	 }
+	 
+	 
+	 /**
+	  * Re-partition the subtrees below changed splits and re-score the changed leaves of this subtree
+	  * @param node
+	  * @param matrix
+	  * @param leafLL - cached log-likelihoods, indexed by leaf number
+	  * @param treeNum
+	  * @param rowsChanged - whether the rows of this node have changed
+	  * @param leafParamsDirty - whether a parameter shared by all leaves has changed
+	  * @param partition - whether changed splits still need to be re-partitioned (false below a subtree which was just re-partitioned)
+	  * @return false if the split is invalid
+	  */
+	 private boolean update(DecisionNode node, FeatureMatrix matrix, double[] leafLL, int treeNum, boolean rowsChanged, boolean leafParamsDirty, boolean partition) {
+		 
+		 if (node.isLeaf()) {
+			 if (rowsChanged || leafParamsDirty || node.leafParametersAreDirty()) {
+				 leafLL[node.getIndex()] = node.getLogLikelihood();
 			 }
+			 return true;
+		 }
+		 
+		 
+		 boolean splitDirty = node.getSplit().isDirty(node.getIndex());
+		 if (partition && splitDirty) {
 			 
+			 // Sort the rows first so that the leaves get the same instances, in the same order, as splitting the whole tree
+			 this.repartitioned[treeNum] = true;
+			 matrix.sortRange(node.from, node.to);
+			 if (!node.splitRows(matrix, node.from, node.to, true)) {
+				 this.rowsValid[treeNum] = false;
+				 return false;
+			 }
+			 partition = false;
+		 }
 		 
-		}
+		 rowsChanged = rowsChanged || splitDirty;
+		 if (!this.update(node.getTrueChild(), matrix, leafLL, treeNum, rowsChanged, leafParamsDirty, partition)) return false;
+		 return this.update(node.getFalseChild(), matrix, leafLL, treeNum, rowsChanged, leafParamsDirty, partition);
 		 
-		return logP;
-		
-		
+	 }
+	 
+	 
+	 @Override
+	 public void store() {
+		 for (int i = 0; i < this.ntrees; i ++) {
+			 System.arraycopy(this.leafLogP[i], 0, this.storedLeafLogP[i], 0, this.maxLeafCount);
+		 }
+		 System.arraycopy(this.cachedVersion, 0, this.storedCachedVersion, 0, this.ntrees);
+		 super.store();
+	 }
+	 
+	 
+	 @Override
+	 public void restore() {
+		 double[][] tmp = this.leafLogP;
+		 this.leafLogP = this.storedLeafLogP;
+		 this.storedLeafLogP = tmp;
+		 long[] tmp2 = this.cachedVersion;
+		 this.cachedVersion = this.storedCachedVersion;
+		 this.storedCachedVersion = tmp2;
+		 
+		 // The rows of the feature matrix are not restored, so the node ranges of a re-partitioned tree must be rebuilt next time
+		 for (int i = 0; i < this.ntrees; i ++) {
+			 if (this.repartitioned[i]) this.rowsValid[i] = false;
+		 }
+		 Arrays.fill(this.repartitioned, false);
+		 super.restore();
 	 }
 
 
@@ -650,7 +862,16 @@ public class DecisionTreeDistribution extends Distribution {
 	
     @Override
     public boolean requiresRecalculation() {
-    	return true; // treeInput.get().somethingIsDirty();
+    	if (this.responseMode == ResponseMode.gaussianprocess) return true;
+    	if (this.treeI.getStateNode().somethingIsDirty()) return true;
+    	for (DecisionTree tree : this.treeI.getTrees()) {
+    		if (this.cachedVersion[tree.getTreeNum()] != tree.getStructureVersion()) return true;
+    	}
+    	if (this.attributePointer.somethingIsDirty() || this.splitPoints.somethingIsDirty()) return true;
+    	if (this.intercept.somethingIsDirty() || this.sigmaOrTau.somethingIsDirty()) return true;
+    	if (this.slope != null && this.slope.somethingIsDirty()) return true;
+    	if (this.multinomialP != null && this.multinomialP.somethingIsDirty()) return true;
+    	return shapeInput.get().somethingIsDirty();
     }
 
 
@@ -690,11 +911,13 @@ public class DecisionTreeDistribution extends Distribution {
 	 * @return
 	 */
 	public boolean split() {
-		boolean valid = true;
-		for (DecisionTree tree : this.treeI.getTrees()) {
-			valid = valid && tree.splitData(this.trainingData[tree.getTreeNum()], true);
+		DecisionTree[] trees = this.treeI.getTrees();
+		boolean[] valid = new boolean[trees.length];
+		this.forEachTree(trees, i -> valid[i] = trees[i].splitData(this.trainingData[trees[i].getTreeNum()], true));
+		for (boolean v : valid) {
+			if (!v) return false;
 		}
-		return valid;
+		return true;
 	}
 	
 
@@ -726,93 +949,37 @@ public class DecisionTreeDistribution extends Distribution {
 		double R2_test[] = new double[nTargets];
 		double rho_test[] = new double[nTargets];
 		
-		PearsonsCorrelation pc = new PearsonsCorrelation();
-		
 		int ntrains = 0;
 		int ntests = 0;
+		DecisionTree[] trees = this.treeI.getTrees();
+		this.prepareRows();
 		for (int t = 0; t < 2; t ++) {
 		
 			
-			//System.out.println(trueY.length + " total instances");
-			
 			// Take mean prediction across all trees in the forest. Each tree should have different data
 			if (t == 1 && this.testData == null) continue;
-			int ninstances = t == 0 ? this.trainingData[0].size() : this.testData.size();
+			final boolean training = t == 0;
 			
 			
-			// True values
-			double[][] trueY = new double[ninstances][];
-			double[][] predY = new double[ninstances][];
+			// { R2, rho } per target, for each tree. Null if the tree could not be evaluated
+			double[][] treeResults = new double[trees.length][];
+			this.forEachTree(trees, i -> treeResults[i] = this.getR2AndCorrelation(trees[i], training));
 			
 			
-			for (DecisionTree tree : this.treeI.getTrees()) {
-				
-				
-				Instances data = t == 0 ? this.trainingData[tree.getTreeNum()] : this.testData;
-				if (data == null || data.size() == 0 || !tree.splitData(data, false)) continue;
-				
-			
-				
-				// Calculate regression R2 at the leaves
-				int instNum = 0;
-				int nleaves = tree.getLeafCount();
-				for (int nodeNum = 0; nodeNum < nleaves; nodeNum ++) {
-					DecisionNode leaf = tree.getNode(nodeNum);
-					double[][] trueYLeaf = leaf.getTargetVals();
-					double[][] predYLeaf = leaf.getPredictionVals();
-					
-					//System.out.println(trueYLeaf.length + "/" + predYLeaf.length);
-					
-					
-					// Put leaf-wise values in main list
-					for (int i = 0; i < trueYLeaf.length; i ++) {
-						trueY[instNum] = trueYLeaf[i];
-						predY[instNum] = predYLeaf[i];
-						instNum++;
-					}
-					
-				}
-				
-				
+			// Sum in tree order
+			for (double[] res : treeResults) {
+				if (res == null) continue;
 				if (t == 0) ntrains++;
 				if (t == 1) ntests++;
-				
-				// One R2 and one rho per class
-				double[] trueYTarget = new double[ninstances];
-				double[] predYTarget = new double[ninstances];
 				for (int targetNum = 0; targetNum < nTargets; targetNum ++) {
-					
-					// Reorganise array
-					for (int i = 0; i < ninstances; i ++) {
-						trueYTarget[i] = trueY[i][targetNum];
-						predYTarget[i] = predY[i][targetNum];
-					}
-					
-					// Total sum of squares
-					double TSS = getTSS(trueYTarget);
-					
-					// Residual sum of squares
-					double RSS = getRSS(trueYTarget, predYTarget);
-					
-					// R squared
-					double R2 =  1 - RSS/TSS;
-					
-				
-					// Correlation
-					double rho = pc.correlation(trueYTarget, predYTarget);
-					
 					if (t == 0) {
-						R2_train[targetNum] += R2;
-						rho_train[targetNum] += rho;
+						R2_train[targetNum] += res[2*targetNum];
+						rho_train[targetNum] += res[2*targetNum+1];
 					}else {
-						R2_test[targetNum] += R2;
-						rho_test[targetNum] += rho;
+						R2_test[targetNum] += res[2*targetNum];
+						rho_test[targetNum] += res[2*targetNum+1];
 					}
-					
 				}
-				
-				
-					
 			}
 		
 		}
@@ -834,6 +1001,83 @@ public class DecisionTreeDistribution extends Distribution {
 		return result; 
 		
 	}
+	
+	
+	/**
+	 * Convert the training and test data into rows, if this has not already been done
+	 */
+	protected void prepareRows() {
+		if (this.trainingRows != null) return;
+		double[][][] rows = new double[this.ntrees][][];
+		for (int i = 0; i < this.ntrees; i ++) rows[i] = CompiledDecisionTree.toRows(this.trainingData[i]);
+		if (this.testData != null) this.testRows = CompiledDecisionTree.toRows(this.testData);
+		this.trainingRows = rows;
+	}
+	
+	
+	/**
+	 * Computes R2 and correlation of a single tree on its training data or on the test data
+	 * Returns a double[] { R2_t1, rho_t1, R2_t2, rho_t2, ... }, or null if the data cannot be split down the tree
+	 * @param tree
+	 * @param training
+	 * @return
+	 */
+	protected double[] getR2AndCorrelation(DecisionTree tree, boolean training) {
+		
+		int nTargets = this.targets.size();
+		Instances data = training ? this.trainingData[tree.getTreeNum()] : this.testData;
+		if (data == null || data.size() == 0) return null;
+		double[][] rows = training ? this.trainingRows[tree.getTreeNum()] : this.testRows;
+		int ninstances = rows.length;
+		
+		
+		// Predicted values, from the flattened tree
+		double[][] predY;
+		try {
+			predY = tree.compile(data).predictBatch(rows);
+		} catch (IllegalArgumentException e) {
+			return null;
+		}
+		
+		
+		// True values
+		int[] targetCols = new int[nTargets];
+		for (int targetNum = 0; targetNum < nTargets; targetNum ++) {
+			targetCols[targetNum] = data.attribute(this.targets.get(targetNum)).index();
+		}
+		
+		
+		// One R2 and one rho per class
+		PearsonsCorrelation pc = new PearsonsCorrelation();
+		double[] result = new double[2 * nTargets];
+		double[] trueYTarget = new double[ninstances];
+		double[] predYTarget = new double[ninstances];
+		for (int targetNum = 0; targetNum < nTargets; targetNum ++) {
+			
+			// Reorganise array
+			for (int i = 0; i < ninstances; i ++) {
+				double y = rows[i][targetCols[targetNum]];
+				trueYTarget[i] = Double.isNaN(y) ? 0 : y;
+				predYTarget[i] = predY[i][targetNum];
+			}
+			
+			// Total sum of squares
+			double TSS = getTSS(trueYTarget);
+			
+			// Residual sum of squares
+			double RSS = getRSS(trueYTarget, predYTarget);
+			
+			// R squared
+			result[2*targetNum] = 1 - RSS/TSS;
+			
+			// Correlation
+			result[2*targetNum+1] = pc.correlation(trueYTarget, predYTarget);
+			
+		}
+		
+		return result;
+		
+	}
 
 
 
@@ -107,6 +107,15 @@ public interface DecisionTreeInterface  {
 
 	public StateNode getStateNode();
 	
+	
+	/**
+	 * Predict the target feature value(s) of each row, averaged across trees
+	 * @param header - the attributes of the rows
+	 * @param rows - one row per instance, as given by Instance.toDoubleArray
+	 * @return
+	 */
+	public double[][] predictBatch(Instances header, double[][] rows);
+	
 	public void setRegressionMode(ResponseMode mode);
 	
 }
@@ -0,0 +1,204 @@
+package poetry.decisiontree;
+
+import java.util.List;
+
+import weka.core.Attribute;
+import weka.core.Instance;
+import weka.core.Instances;
+
+
+/**
+ * The covariates of an Instances object as primitive columns, for splitting data down a decision tree without creating new Instances
+ * Numeric covariates are stored as doubles and nominal covariates as the index of their value in the covariate attribute (or -1 if missing)
+ * Each node holds a range of the row index array. Splitting a node partitions its range in place, so that the true rows come first
+ * @author jdou557
+ *
+ */
+public class FeatureMatrix {
+
+
+	final Instances data;
+
+	// Column-major. Columns are in the same order as the covariates of the split
+	final double[][] numeric;
+	final int[][] nominal;
+
+	// Row indices, partitioned by the nodes of the tree
+	final int[] rows;
+
+	// Temporary storage for the false rows while partitioning
+	final int[] scratch;
+
+
+
+	public FeatureMatrix(Instances data, List<Attribute> covariates) {
+
+		this.data = data;
+		int nrows = data.numInstances();
+		int ncols = covariates.size();
+		this.numeric = new double[ncols][];
+		this.nominal = new int[ncols][];
+		for (int c = 0; c < ncols; c ++) {
+
+			Attribute attr = covariates.get(c);
+			if (attr.isNominal()) {
+
+				// Map through the value name, in case this data has a different header to the one the covariates were taken from
+				this.nominal[c] = new int[nrows];
+				for (int r = 0; r < nrows; r ++) {
+					this.nominal[c][r] = attr.indexOfValue(data.instance(r).stringValue(attr));
+				}
+
+			}else {
+				this.numeric[c] = new double[nrows];
+				for (int r = 0; r < nrows; r ++) {
+					this.numeric[c][r] = data.instance(r).value(attr);
+				}
+			}
+
+		}
+
+		this.rows = new int[nrows];
+		this.scratch = new int[nrows];
+		this.resetRows();
+
+	}
+
+
+	/**
+	 * Put the rows back in their original order
+	 */
+	public void resetRows() {
+		for (int r = 0; r < this.rows.length; r ++) this.rows[r] = r;
+	}
+
+
+	/**
+	 * Number of instances
+	 * @return
+	 */
+	public int size() {
+		return this.rows.length;
+	}
+
+
+	/**
+	 * The data which this matrix was built from
+	 * @return
+	 */
+	public Instances getData() {
+		return this.data;
+	}
+
+
+	/**
+	 * The instance at this position of the row index array
+	 * @param i
+	 * @return
+	 */
+	public Instance getInstance(int i) {
+		return this.data.instance(this.rows[i]);
+	}
+
+
+	/**
+	 * Partition the rows in [from, to) so that those with a numeric value <= splitPoint come first
+	 * The partition is stable, so the instances at each leaf are in the same order as the data
+	 * @param col
+	 * @param splitPoint
+	 * @param from
+	 * @param to
+	 * @return the start of the false rows
+	 */
+	public int partitionNumeric(int col, double splitPoint, int from, int to) {
+		double[] values = this.numeric[col];
+		int t = from;
+		int f = 0;
+		for (int i = from; i < to; i ++) {
+			int r = this.rows[i];
+			if (values[r] <= splitPoint) this.rows[t++] = r;
+			else this.scratch[f++] = r;
+		}
+		System.arraycopy(this.scratch, 0, this.rows, t, f);
+		return t;
+	}
+
+
+	/**
+	 * Partition the rows in [from, to) so that those with this nominal value come first
+	 * @param col
+	 * @param value
+	 * @param from
+	 * @param to
+	 * @return the start of the false rows
+	 */
+	public int partitionNominal(int col, int value, int from, int to) {
+		int[] values = this.nominal[col];
+		int t = from;
+		int f = 0;
+		for (int i = from; i < to; i ++) {
+			int r = this.rows[i];
+			if (values[r] == value) this.rows[t++] = r;
+			else this.scratch[f++] = r;
+		}
+		System.arraycopy(this.scratch, 0, this.rows, t, f);
+		return t;
+	}
+
+
+	/**
+	 * Sort the rows in [from, to) back into their original order, so that re-partitioning a subtree gives its leaves the
+	 * same order as splitting the whole tree would. The range is made up of the ascending runs of the subtree's leaves,
+	 * which are merged pairwise using the scratch array
+	 * @param from
+	 * @param to
+	 */
+	public void sortRange(int from, int to) {
+		while (true) {
+			int nruns = 0;
+			int start = from;
+			while (start < to) {
+				int mid = start + 1;
+				while (mid < to && this.rows[mid-1] < this.rows[mid]) mid++;
+				nruns++;
+				if (mid >= to) break;
+				int end = mid + 1;
+				while (end < to && this.rows[end-1] < this.rows[end]) end++;
+				this.merge(start, mid, end);
+				start = end;
+			}
+			if (nruns <= 1) return;
+		}
+	}
+
+
+	/**
+	 * Merge the ascending runs [from, mid) and [mid, to)
+	 */
+	private void merge(int from, int mid, int to) {
+		int n = mid - from;
+		System.arraycopy(this.rows, from, this.scratch, 0, n);
+		int i = 0;
+		int j = mid;
+		int k = from;
+		while (i < n && j < to) this.rows[k++] = this.scratch[i] < this.rows[j] ? this.scratch[i++] : this.rows[j++];
+		while (i < n) this.rows[k++] = this.scratch[i++];
+	}
+
+
+	/**
+	 * Copy the instances in [from, to) into a new Instances object
+	 * @param from
+	 * @param to
+	 * @return
+	 */
+	public Instances toInstances(int from, int to) {
+		Instances instances = new Instances(this.data, to - from);
+		for (int i = from; i < to; i ++) {
+			instances.add(this.getInstance(i));
+		}
+		return instances;
+	}
+
+
+}
@@ -0,0 +1,127 @@
+package poetry.decisiontree;
+
+
+/**
+ * Sufficient statistics of the instances at a leaf under a linear (normal) response: the number of instances,
+ * and the means and centred cross-products of the predictors and the target
+ * These are accumulated one instance at a time (Welford's method), so that the residual sum of squares does not suffer
+ * from cancellation when the values are large compared with their spread
+ * The log-likelihood of any slopes, intercept and sigma can then be evaluated in O(p^2) time for p predictors
+ * Missing values are counted as 0, in the same way as DecisionNode.getSlopeInterceptResponse and getTargetVals
+ * @author jdou557
+ *
+ */
+public class NormalSufficientStatistics {
+
+
+	final int npred;
+	int n;
+
+	// Mean of y, and sum of (y - mean)^2
+	double my, cyy;
+
+	// Mean of x, sum of (x - mean)(y - mean), and sum of (x - mean)(x - mean)^T
+	final double[] mx, cxy;
+	final double[][] cxx;
+
+	// Deviations of the current instance from the means
+	final double[] dx;
+
+
+	public NormalSufficientStatistics(int npred) {
+		this.npred = npred;
+		this.n = 0;
+		this.mx = new double[npred];
+		this.cxy = new double[npred];
+		this.cxx = new double[npred][npred];
+		this.dx = new double[npred];
+	}
+
+
+	/**
+	 * Add an instance
+	 * @param y - target value
+	 * @param x - predictor values
+	 */
+	public void add(double y, double[] x) {
+		if (Double.isNaN(y)) y = 0;
+		this.n++;
+
+		// Deviations from the old means, and then update the means
+		double dy = y - this.my;
+		this.my += dy / this.n;
+		for (int i = 0; i < this.npred; i ++) {
+			double xi = Double.isNaN(x[i]) ? 0 : x[i];
+			this.dx[i] = xi - this.mx[i];
+			this.mx[i] += this.dx[i] / this.n;
+		}
+
+		// Each cross-product grows by (n-1)/n times the product of the deviations
+		double f = (this.n - 1.0) / this.n;
+		this.cyy += f*dy*dy;
+		for (int i = 0; i < this.npred; i ++) {
+			double di = f*this.dx[i];
+			this.cxy[i] += di*dy;
+
+			// Only the lower triangle is needed
+			double[] row = this.cxx[i];
+			for (int j = 0; j <= i; j ++) {
+				row[j] += di*this.dx[j];
+			}
+		}
+	}
+
+
+	/**
+	 * Number of instances
+	 * @return
+	 */
+	public int size() {
+		return this.n;
+	}
+
+
+	/**
+	 * The residual sum of squares of the linear model y = intercept + sum_i slope_i x_i
+	 * @param intercept
+	 * @param slopes
+	 * @return
+	 */
+	public double getRSS(double intercept, double[] slopes) {
+
+		// Expand around the means: sum (y - b - m.x)^2 = n (my - b - m.mx)^2 + cyy - 2 m.cxy + m^T cxx m
+		double meanResidual = this.my - intercept;
+		double rss = this.cyy;
+		for (int i = 0; i < this.npred; i ++) {
+			double mi = slopes[i];
+			meanResidual -= mi*this.mx[i];
+			rss -= 2*mi*this.cxy[i];
+			double[] row = this.cxx[i];
+			double cross = 0;
+			for (int j = 0; j < i; j ++) cross += slopes[j]*row[j];
+			rss += mi*(2*cross + mi*row[i]);
+		}
+		rss += this.n*meanResidual*meanResidual;
+
+		// Rounding error can make a perfect fit slightly negative
+		return Math.max(rss, 0);
+
+	}
+
+
+	/**
+	 * Log-likelihood of a normal distribution with standard deviation sigma around the linear model
+	 * @param intercept
+	 * @param slopes
+	 * @param sigma
+	 * @return
+	 */
+	public double getLogLikelihood(double intercept, double[] slopes, double sigma) {
+		if (sigma <= 0) return Double.NEGATIVE_INFINITY;
+		if (this.n == 0) return 0;
+		double a = -Math.log((Math.sqrt(2.0 * Math.PI) * sigma));
+		return this.n*a - this.getRSS(intercept, slopes) / (2.0 * sigma * sigma);
+	}
+
+
+}
@@ -130,6 +130,26 @@ public class RandomForest extends StateNode implements DecisionTreeInterface {
 		return this.trees;
 	}
 	
+	
+	@Override
+	public double[][] predictBatch(Instances header, double[][] rows) {
+		double[][] mean = null;
+		for (DecisionTree tree : this.trees) {
+			double[][] pred = tree.predictBatch(header, rows);
+			if (mean == null) {
+				mean = pred;
+				continue;
+			}
+			for (int r = 0; r < rows.length; r ++) {
+				for (int k = 0; k < pred[r].length; k ++) mean[r][k] += pred[r][k];
+			}
+		}
+		for (int r = 0; r < rows.length; r ++) {
+			for (int k = 0; k < mean[r].length; k ++) mean[r][k] /= this.trees.length;
+		}
+		return mean;
+	}
+	
 	@Override
 	public DecisionTree getTree(int i) {
 		return this.trees[i];
@@ -196,20 +216,20 @@ public class RandomForest extends StateNode implements DecisionTreeInterface {
 
 	@Override
 	public void assignTo(StateNode other) {
-		// TODO Auto-generated method stub
-		
+		other.assignFrom(this);
 	}
 
 	@Override
 	public void assignFrom(StateNode other) {
-		// TODO Auto-generated method stub
-		
+		RandomForest forest = (RandomForest) other;
+		for (int i = 0; i < this.ntrees; i ++) {
+			this.trees[i].assignFrom(forest.trees[i]);
+		}
 	}
 
 	@Override
 	public void assignFromFragile(StateNode other) {
-		// TODO Auto-generated method stub
-		
+		this.assignFrom(other);
 	}
 
 	@Override
@@ -78,11 +78,9 @@ public class SplitNodeOperator extends Operator {
 					System.exit(0);
 				}
 				
-				// Create 2 new nodes
-				DecisionNode trueChild = dist.newNode(tree.getTreeNum());
-				DecisionNode falseChild = dist.newNode(tree.getTreeNum());
-				parent.setTrueChild(trueChild);
-				parent.setFalseChild(falseChild);
+				// Add 2 nodes, reusing ones which were removed earlier if possible
+				parent.setTrueChild(this.newNode(tree, dist));
+				parent.setFalseChild(this.newNode(tree, dist));
 				
 				
 				
@@ -93,17 +91,17 @@ public class SplitNodeOperator extends Operator {
 				
 				
 				// Sample a cherry to shrink
-				List<DecisionNode> cherries = new ArrayList<>();
-				for (DecisionNode node : tree.getNodes()){
-					if (node.isCherry()) cherries.add(node);
-				}
-				if (cherries.size() == 0) return Double.NEGATIVE_INFINITY;
-				int nodeNum = Randomizer.nextInt(cherries.size());
-				DecisionNode parent = cherries.get(nodeNum);
+				int ncherries = tree.getCherryCount();
+				if (ncherries == 0) return Double.NEGATIVE_INFINITY;
+				DecisionNode parent = tree.getCherry(Randomizer.nextInt(ncherries));
 				
 				
-				// Delete its children
+				// Delete its children, and keep them for later
+				DecisionNode trueChild = parent.getTrueChild();
+				DecisionNode falseChild = parent.getFalseChild();
 				parent.removeChildren();
+				tree.recycleNode(trueChild);
+				tree.recycleNode(falseChild);
 				
 			}
 			
@@ -122,6 +120,18 @@ public class SplitNodeOperator extends Operator {
 	}
 	
 	
+	/**
+	 * A leaf to add to the tree
+	 * @param tree
+	 * @param dist
+	 * @return
+	 */
+	protected DecisionNode newNode(DecisionTree tree, DecisionTreeDistribution dist) {
+		DecisionNode node = tree.reuseNode();
+		if (node == null) node = dist.newNode(tree.getTreeNum());
+		return node;
+	}
+	
 
 	
 	/**
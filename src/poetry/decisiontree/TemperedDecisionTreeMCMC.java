@@ -0,0 +1,245 @@
+package poetry.decisiontree;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import beast.core.Description;
+import beast.core.Distribution;
+import beast.core.Input;
+import beast.core.Logger;
+import beast.core.MCMC;
+import beast.core.Operator;
+import beast.core.OperatorSchedule;
+import beast.core.Runnable;
+import beast.core.State;
+import beast.core.StateNode;
+import beast.core.StateNodeInitialiser;
+import beast.core.Input.Validate;
+import beast.core.util.Log;
+import beast.util.Randomizer;
+import beast.util.XMLParser;
+import beast.util.XMLProducer;
+import poetry.util.ReplicateContext;
+
+
+@Description("Parallel tempering (MC3) for decision tree and random forest models. The MCMC analysis is copied once per chain and the chains "
+		+ "are run on separate threads. Every few steps, the states of two chains with adjacent temperatures are proposed to be swapped. "
+		+ "Only the cold chain is logged")
+public class TemperedDecisionTreeMCMC extends Runnable {
+
+
+	final public Input<MCMC> mcmcInput = new Input<>("mcmc", "The MCMC analysis of the decision tree model. It is copied once per chain, "
+			+ "and its chain length, operators and loggers are used", Validate.REQUIRED);
+	final public Input<Integer> chainsInput = new Input<>("chains", "Number of chains, including the cold chain (default 4)", 4);
+	final public Input<Double> deltaTemperatureInput = new Input<>("deltaTemperature", "Temperature difference between adjacent chains. "
+			+ "Chain k samples from the posterior to the power of 1/(1 + k*deltaTemperature) (default 0.1)", 0.1);
+	final public Input<Integer> swapEveryInput = new Input<>("swapEvery", "Number of steps each chain takes between swap proposals (default 100)", 100);
+	final public Input<Integer> threadsInput = new Input<>("threads", "Number of chains to run at once (default: one per chain)");
+
+
+	int nchains;
+	double deltaTemperature;
+	int swapEvery;
+	int nthreads;
+
+	Chain[] chains;
+
+	// Swap proposals and acceptances between chain k and k+1
+	long[] swapsProposed;
+	long[] swapsAccepted;
+
+
+
+	@Override
+	public void initAndValidate() {
+		this.nchains = chainsInput.get();
+		this.deltaTemperature = deltaTemperatureInput.get();
+		this.swapEvery = swapEveryInput.get();
+		this.nthreads = threadsInput.get() == null ? this.nchains : threadsInput.get();
+		if (this.nchains < 1) throw new IllegalArgumentException("Please ensure that chains > 0");
+		if (this.deltaTemperature <= 0) throw new IllegalArgumentException("Please ensure that deltaTemperature > 0");
+		if (this.swapEvery <= 0) throw new IllegalArgumentException("Please ensure that swapEvery > 0");
+		if (this.nthreads <= 0) throw new IllegalArgumentException("Please ensure that threads > 0");
+	}
+
+
+
+	@Override
+	public void run() throws Exception {
+
+
+		// Copy the analysis once per chain. Every chain is parsed with the same seed, so that they all have the same
+		// training/test split, bootstraps and covariate subsets. The arff file itself is only parsed once (see WekaData)
+		String xml = new XMLProducer().toXML(mcmcInput.get());
+		long seed = Randomizer.getSeed();
+		this.chains = new Chain[this.nchains];
+		for (int k = 0; k < this.nchains; k ++) {
+			Randomizer.setSeed(seed);
+			MCMC mcmc = (MCMC) new XMLParser().parseFromString(xml);
+			this.chains[k] = new Chain(mcmc, 1.0 / (1 + k*this.deltaTemperature));
+		}
+		Randomizer.setSeed(seed + 1);
+		this.swapsProposed = new long[this.nchains];
+		this.swapsAccepted = new long[this.nchains];
+
+
+		// Only the cold chain is logged
+		Chain cold = this.chains[0];
+		List<Logger> loggers = cold.mcmc.loggersInput.get();
+		for (Logger logger : loggers) logger.init();
+		long chainLength = cold.mcmc.chainLengthInput.get();
+		Log.warning("Running " + this.nchains + " tempered chains on " + Math.min(this.nthreads, this.nchains) + " threads");
+
+
+		ExecutorService pool = Executors.newFixedThreadPool(Math.min(this.nthreads, this.nchains));
+		try {
+
+			long sample = 0;
+			while (sample < chainLength) {
+
+				// Run every chain until the next swap
+				final long from = sample;
+				final long to = Math.min(sample + this.swapEvery, chainLength);
+				List<Future<?>> futures = new ArrayList<>();
+				for (Chain chain : this.chains) {
+					futures.add(pool.submit(ReplicateContext.wrap(() -> {
+						for (long s = from; s < to; s ++) {
+							chain.step(s);
+							if (chain == cold) {
+								for (Logger logger : loggers) logger.log(s);
+							}
+						}
+					})));
+				}
+				for (Future<?> future : futures) future.get();
+				sample = to;
+
+				// Propose to swap the states of two adjacent chains
+				if (this.nchains > 1) this.proposeSwap();
+
+			}
+
+		} finally {
+			pool.shutdown();
+		}
+
+		for (Logger logger : loggers) logger.close();
+
+
+		// Swap statistics
+		for (int k = 0; k < this.nchains - 1; k ++) {
+			double p = this.swapsProposed[k] == 0 ? 0 : 1.0 * this.swapsAccepted[k] / this.swapsProposed[k];
+			Log.warning("Swap acceptance between chains " + k + " and " + (k+1) + ": " + this.swapsAccepted[k] + "/" + this.swapsProposed[k] + " = " + p);
+		}
+
+	}
+
+
+
+	/**
+	 * Propose to swap the states of a random pair of chains with adjacent temperatures
+	 */
+	protected void proposeSwap() {
+
+		int i = Randomizer.nextInt(this.nchains - 1);
+		Chain a = this.chains[i];
+		Chain b = this.chains[i+1];
+		this.swapsProposed[i]++;
+
+		double logAlpha = (a.beta - b.beta) * (b.logP - a.logP);
+		if (logAlpha >= 0 || Randomizer.nextDouble() < Math.exp(logAlpha)) {
+
+			// Exchange the values of each state node. The chains are copies of the same analysis so their state nodes line up
+			List<StateNode> nodesA = a.state.stateNodeInput.get();
+			List<StateNode> nodesB = b.state.stateNodeInput.get();
+			for (int n = 0; n < nodesA.size(); n ++) {
+				StateNode tmp = nodesA.get(n).copy();
+				nodesA.get(n).assignFrom(nodesB.get(n));
+				nodesB.get(n).assignFrom(tmp);
+			}
+			a.logP = a.state.robustlyCalcPosterior(a.posterior);
+			b.logP = b.state.robustlyCalcPosterior(b.posterior);
+			this.swapsAccepted[i]++;
+
+		}
+
+	}
+
+
+
+
+	/**
+	 * One chain, sampling from the posterior to the power of beta
+	 */
+	protected static class Chain {
+
+		final MCMC mcmc;
+		final State state;
+		final Distribution posterior;
+		final OperatorSchedule schedule;
+		final double beta;
+		double logP;
+
+
+		Chain(MCMC mcmc, double beta) throws Exception {
+			this.mcmc = mcmc;
+			this.beta = beta;
+			this.state = mcmc.startStateInput.get();
+			this.posterior = mcmc.posteriorInput.get();
+			this.schedule = mcmc.getOperatorSchedule();
+			for (StateNodeInitialiser init : mcmc.initialisersInput.get()) init.initStateNodes();
+			this.state.initialise();
+			this.state.setPosterior(this.posterior);
+			this.logP = this.state.robustlyCalcPosterior(this.posterior);
+		}
+
+
+		/**
+		 * A single Metropolis-Hastings step, the same as MCMC.propagateState except that the posterior ratio is raised to the power of beta
+		 * Operators are tuned on the tempered acceptance probability
+		 * @param sample
+		 */
+		void step(long sample) {
+
+			this.state.store(sample);
+			Operator operator = this.schedule.selectOperator();
+			double logHastingsRatio = operator.proposal();
+			double logAlpha = Double.NEGATIVE_INFINITY;
+			if (logHastingsRatio != Double.NEGATIVE_INFINITY) {
+
+				if (operator.requiresStateInitialisation()) {
+					this.state.storeCalculationNodes();
+					this.state.checkCalculationNodesDirtiness();
+				}
+				double newLogP = this.posterior.calculateLogP();
+				logAlpha = this.beta * (newLogP - this.logP) + logHastingsRatio;
+				if (logAlpha >= 0 || Randomizer.nextDouble() < Math.exp(logAlpha)) {
+					this.logP = newLogP;
+					this.state.acceptCalculationNodes();
+					operator.accept();
+				} else {
+					operator.reject(newLogP == Double.NEGATIVE_INFINITY ? -1 : 0);
+					this.state.restore();
+					this.state.restoreCalculationNodes();
+				}
+				this.state.setEverythingDirty(false);
+
+			} else {
+				operator.reject(-2);
+				this.state.restore();
+				if (!operator.requiresStateInitialisation()) {
+					this.state.setEverythingDirty(false);
+					this.state.restoreCalculationNodes();
+				}
+			}
+			operator.optimize(logAlpha);
+
+		}
+
+	}
+
+
+}
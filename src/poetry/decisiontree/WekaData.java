@@ -1,5 +1,8 @@
 package poetry.decisiontree;
 
+import java.io.File;
+import java.util.concurrent.ConcurrentHashMap;
+
 import beast.core.BEASTObject;
 import beast.core.Description;
 import beast.core.Input;
@@ -20,6 +23,10 @@ public class WekaData extends BEASTObject {
 	final public Input<Boolean> dataSplitByXMLInput = new Input<>("xmlSplit", "Split the data into training/test sets using the XML number?", true);
 	
 	
+	// Parsed arff files, by path. Shared by all objects in this JVM (eg. the chains of a TemperedDecisionTreeMCMC) and never modified
+	private static final ConcurrentHashMap<String, ArffFile> files = new ConcurrentHashMap<>();
+	
+	
 	Instances data;
 	double dataSplitProportion;
 	
@@ -31,14 +38,8 @@ public class WekaData extends BEASTObject {
 	@Override
 	public void initAndValidate() {
 		
-		// Read the arff file
-		this.data = null;
-		try {
-			data = new DataSource(arffInput.get()).getDataSet();
-		} catch (Exception e) {
-			e.printStackTrace();
-			throw new IllegalArgumentException("Error opening arff file " + arffInput.get());
-		}
+		// Read the arff file. The data is transformed in place later, so take a copy
+		this.data = new Instances(getArff(arffInput.get()));
 		
 		// Training / test split
 		this.dataSplitProportion = dataSplitInput.get() / 100;
@@ -51,6 +52,46 @@ public class WekaData extends BEASTObject {
 	}
 
 
+	/**
+	 * Parse an arff file, or return it if it has already been parsed and has not changed since
+	 * @param path
+	 * @return
+	 */
+	private static Instances getArff(String path) {
+		File file = new File(path);
+		long length = file.length();
+		long modified = file.lastModified();
+		ArffFile arff = files.compute(file.getAbsolutePath(), (key, cached) -> {
+			if (cached != null && cached.length == length && cached.modified == modified) return cached;
+			try {
+				return new ArffFile(new DataSource(path).getDataSet(), length, modified);
+			} catch (Exception e) {
+				e.printStackTrace();
+				throw new IllegalArgumentException("Error opening arff file " + path);
+			}
+		});
+		return arff.data;
+	}
+	
+	
+	/**
+	 * A parsed arff file, and the length and modification time of the file when it was parsed
+	 */
+	private static class ArffFile {
+		
+		final Instances data;
+		final long length;
+		final long modified;
+		
+		ArffFile(Instances data, long length, long modified) {
+			this.data = data;
+			this.length = length;
+			this.modified = modified;
+		}
+		
+	}
+	
+	
 	/**
 	 * The training data
 	 * @return
@@ -91,6 +91,84 @@ public class FlexibleDirichlet {
         
         return logP;
     }
+    
+    
+    
+    /**
+     * Return the total log probability of many observations, such as the instances at a decision tree leaf
+     * Same as summing calcLogP over the rows, except that the checks, log(p) and the log-gamma of the alpha sum 
+     * are only done once, and each row takes a single pass over its components
+     * @param X - one observation per row
+     * @param alpha - the alpha of each observation
+     * @param p
+     * @param tau
+     * @param sumAlpha - the sum of every row of alpha, or NaN if the rows have different sums
+     * @return
+     */
+    public static double calcLogP(double[][] X, double[][] alpha, double[] p, double tau, double sumAlpha) {
+    	
+    	if (X.length != alpha.length) {
+    		throw new IllegalArgumentException("Number of observations and alphas should be the same " + X.length + " != " + alpha.length);
+    	}
+    	if (X.length == 0) return 0;
+    	int dim = alpha[0].length;
+    	if (p != null && dim != p.length) {
+			 throw new IllegalArgumentException("Dimensions of alpha and p should be the same " + dim + " != " + p.length);
+    	}
+    	if (p != null && tau <= 0) return Double.NEGATIVE_INFINITY;
+    	
+    	
+    	// Per component constants. An invalid probability only matters if its alpha is non-zero
+    	double[] logProb = null;
+    	boolean[] validProb = null;
+    	if (p != null) {
+    		logProb = new double[dim];
+    		validProb = new boolean[dim];
+    		for (int i = 0; i < dim; i ++) {
+    			validProb[i] = p[i] >= 0 && p[i] <= 1;
+    			logProb[i] = Math.log(p[i]);
+    		}
+    	}
+    	double logGammaSumAlpha = Double.isNaN(sumAlpha) ? 0 : org.apache.commons.math.special.Gamma.logGamma(sumAlpha);
+    	
+    	
+    	double logP = 0;
+    	for (int row = 0; row < X.length; row ++) {
+    		
+    		double[] x = X[row];
+    		double[] a = alpha[row];
+        	if (a.length != x.length || a.length != dim) {
+   			 	throw new IllegalArgumentException("Dimensions of alpha and x should be the same " + a.length + " != " + x.length);
+        	}
+        	
+        	double rowSum = 0;
+        	double sum = 0;
+    		for (int i = 0; i < dim; i ++) {
+    			
+    			if (a[i] == 0) continue;
+    			double logX = Math.log(x[i]);
+    			double logGammaA = org.apache.commons.math.special.Gamma.logGamma(a[i]);
+    			
+    			// Standard dirichlet (eqn 5; LHS)
+    			logP += (a[i] - 1) * logX - logGammaA;
+    			rowSum += a[i];
+    			
+    			// Flexible dirichlet (eqn 5; RHS): p Gamma(a) / Gamma(a + tau) x^tau
+    			if (p != null) {
+    				if (!validProb[i]) return Double.NEGATIVE_INFINITY;
+    				sum += Math.exp(logProb[i] + logGammaA - org.apache.commons.math.special.Gamma.logGamma(a[i] + tau) + tau*logX);
+    			}
+    			
+    		}
+    		
+    		logP += Double.isNaN(sumAlpha) ? org.apache.commons.math.special.Gamma.logGamma(rowSum) : logGammaSumAlpha;
+    		if (p != null) logP += Math.log(sum);
+    		
+    	}
+    	
+    	return logP;
+    	
+    }
 	
 	
 	
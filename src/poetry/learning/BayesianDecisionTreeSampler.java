@@ -34,6 +34,8 @@ import poetry.decisiontree.DecisionTree;
 import poetry.decisiontree.DecisionTreeDistribution.ResponseMode;
 import poetry.sampler.POEM;
 import poetry.util.BEAST2Weka;
+import poetry.util.DatasetCatalogue;
+import poetry.util.ReplicateContext;
 import weka.classifiers.functions.GaussianProcesses;
 import weka.classifiers.functions.supportVector.RBFKernel;
 import weka.core.Attribute;
@@ -48,6 +50,8 @@ public class BayesianDecisionTreeSampler extends WeightSampler {
 	
 	final public Input<Tree> treeInput = new Input<>("tree", "The phylogenetic tree (used for machine learning)", Input.Validate.REQUIRED);
 	final public Input<Alignment> dataInput = new Input<>("data", "The alignment (used for machine learning)", Input.Validate.REQUIRED);
+	final public Input<File> catalogueInput = new Input<>("catalogue", "A dataset catalogue built by BuildDatasetCatalogue. If the alignment is catalogued "
+			+ "then its features are looked up instead of being recomputed");
 	
 	final public Input<ResponseMode> regressionInput = new Input<>("regression", "Regression model at the leaves", ResponseMode.test, ResponseMode.values());
 	
@@ -76,6 +80,16 @@ public class BayesianDecisionTreeSampler extends WeightSampler {
 	public void initAndValidate() {
 		
 		
+		// Dataset features
+		if (catalogueInput.get() != null) {
+			try {
+				DatasetCatalogue.load(ReplicateContext.resolve(catalogueInput.get().getPath()));
+			} catch (IOException e) {
+				throw new IllegalArgumentException("Error loading catalogue " + catalogueInput.get().getPath() + ": " + e.getMessage());
+			}
+		}
+		
+		
 		try {
 			
 			
@@ -104,7 +118,7 @@ public class BayesianDecisionTreeSampler extends WeightSampler {
 		
 		// Load dataset for training GP
 		if (priorDatabase == null) {
-			this.priorDatabase = new DataSource(datasetInput.get()).getDataSet();
+			this.priorDatabase = new DataSource(ReplicateContext.resolve(datasetInput.get()).getPath()).getDataSet();
 			this.priorDatabase.setClass(this.priorDatabase.attribute(distClassName));
 		}
 		return priorDatabase;
@@ -139,7 +153,7 @@ public class BayesianDecisionTreeSampler extends WeightSampler {
 		
 
 		// Load decision tree and prepare the decision tree leaf
-		List<DecisionTree>  trees = parseDecisionTrees(new File(treesInput.get()), 10);
+		List<DecisionTree>  trees = parseDecisionTrees(ReplicateContext.resolve(treesInput.get()), 10);
 		this.tree = trees.get(trees.size()-1);
 		this.tree.setRegressionMode(regressionInput.get());
 		Log.warning("tree : " + this.tree.toString());
@@ -167,7 +181,7 @@ public class BayesianDecisionTreeSampler extends WeightSampler {
 		
 		
 		// Load dataset for training GP
-		this.priorDatabase = new DataSource(datasetInput.get()).getDataSet();
+		this.priorDatabase = new DataSource(ReplicateContext.resolve(datasetInput.get()).getPath()).getDataSet();
 		this.priorDatabase.setClass(this.priorDatabase.attribute(distClassName));
 
 		
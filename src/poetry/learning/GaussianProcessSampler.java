@@ -32,6 +32,8 @@ import poetry.PoetryAnalyser;
 import poetry.sampler.POEM;
 import poetry.tools.MinESS;
 import poetry.util.BEAST2Weka;
+import poetry.util.DatasetCatalogue;
+import poetry.util.ReplicateContext;
 import poetry.util.WekaUtils;
 import weka.classifiers.functions.GaussianProcesses;
 import weka.classifiers.functions.supportVector.PolyKernel;
@@ -64,6 +66,8 @@ public class GaussianProcessSampler extends WeightSampler {
 	
 	final public Input<Tree> treeInput = new Input<>("tree", "The phylogenetic tree (used for machine learning)");
 	final public Input<Alignment> dataInput = new Input<>("data", "The alignment (used for machine learning)");
+	final public Input<File> catalogueInput = new Input<>("catalogue", "A dataset catalogue built by BuildDatasetCatalogue. If the alignment is catalogued "
+			+ "then its features are looked up instead of being recomputed");
 	
 	final public Input<Double> noiseInput = new Input<>("noise", "The noise to use in Gaussian Processes", 0.05);
 	final public Input<Double> explorativityInitInput = new Input<>("explorativity", "Initial explorativity (log space) in Gaussian Processes for iteration 1", 3.0);
@@ -113,12 +117,21 @@ public class GaussianProcessSampler extends WeightSampler {
 		
 		
 		// State file
-		this.poetryFile = new File(poetryFileInput.get());
+		this.poetryFile = ReplicateContext.resolve(poetryFileInput.get());
 		if (this.poetryFile.exists() && !this.poetryFile.canWrite()) {
 			throw new IllegalArgumentException("Error: cannot write to " + this.poetryFile.getPath());
 		}
 		
 		
+		// Dataset features
+		if (catalogueInput.get() != null) {
+			try {
+				DatasetCatalogue.load(ReplicateContext.resolve(catalogueInput.get().getPath()));
+			} catch (IOException e) {
+				throw new IllegalArgumentException("Error loading catalogue " + catalogueInput.get().getPath() + ": " + e.getMessage());
+			}
+		}
+		
 
 		try {
 			this.initialPoetry = this.readPoetry();
@@ -428,7 +441,7 @@ public class GaussianProcessSampler extends WeightSampler {
 		try {
 			for (int i = 0; i < this.getNumPoems(); i ++) {
 				POEM poem = this.poems.get(i);
-				calculator = new MinESS(new File(poem.getLoggerFileName()), "treePrior"); //tmp
+				calculator = new MinESS(ReplicateContext.resolve(poem.getLoggerFileName()), "treePrior"); //tmp
 				calculator.run();
 				
 				// Estimates are too volatile early in the chain
@@ -698,7 +711,7 @@ public class GaussianProcessSampler extends WeightSampler {
 			
 			
 			// Load the database
-			Instances priorDatabase = this.getInstancesFromDatabase(new File(this.datasetStr), poems);
+			Instances priorDatabase = this.getInstancesFromDatabase(ReplicateContext.resolve(this.datasetStr), poems);
 
 			int ninstances = 2000; //priorDatabase.size();
 			
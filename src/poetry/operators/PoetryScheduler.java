@@ -17,6 +17,7 @@ import beast.coupledMCMC.HeatedChain;
 import poetry.PoetryAnalyser;
 import poetry.learning.WeightSampler;
 import poetry.sampler.POEM;
+import poetry.util.ReplicateContext;
 
 
 @Description("An operator schedule which assigns operater weights at the start of MCMC and then updates a central database at the end of MCMC."
@@ -66,12 +67,12 @@ public class PoetryScheduler extends OperatorSchedule {
 		 
 		 // Database
 		 this.database = null;
-		 if (this.databaseFileInput.get() != null)  this.database = new File(this.databaseFileInput.get());
+		 if (this.databaseFileInput.get() != null)  this.database = ReplicateContext.resolve(this.databaseFileInput.get());
 		 if (this.database != null && this.sampleNumInput.get() == null) {
 			 this.sampleNumInput.set(-1);
 			 Log.warning("Warning: Please specify the xml number of this file so the database can be read");
 		 }
-		 File runtimeLog = new File(this.runtimeLoggerInput.get());
+		 File runtimeLog = ReplicateContext.resolve(this.runtimeLoggerInput.get());
 
 		
 		 this.poetry = null;
@@ -0,0 +1,340 @@
+package poetry.sampler;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import beast.evolution.alignment.Alignment;
+import beast.evolution.alignment.FilteredAlignment;
+import beast.evolution.alignment.Sequence;
+import beast.evolution.tree.Tree;
+import beast.math.distributions.MRCAPrior;
+import beast.util.ClusterTree;
+import beast.util.NexusParser;
+import poetry.util.WeightedFile;
+
+
+/**
+ * A least-recently-used cache of parsed alignment files, shared by all DatasetSamplers in this JVM
+ * The same files are sampled many times by SimulateXML, so each file is only parsed once while it fits within the memory budget
+ * Files are parsed outside of the cache lock, so that threads parsing different files do not wait for each other,
+ * and threads asking for the same file wait for a single parse
+ * Cached objects are never modified, so they can be read by several threads at once. Partitions are built afresh on each draw, 
+ * without registering them as outputs of the cached alignment
+ * @author jdou557
+ *
+ */
+public class AlignmentCache {
+
+
+	// Approximate memory used per alignment character (sequence string, counts and patterns)
+	private static final int BYTES_PER_CHARACTER = 16;
+
+	// Guarded by the cache
+	private static long budget = 512L * 1024 * 1024;
+	private static boolean budgetRequested = false;
+	private static long used = 0;
+	private static final LinkedHashMap<String, ParsedAlignment> cache = new LinkedHashMap<>(16, 0.75f, true);
+	
+	// Files which are being parsed
+	private static final ConcurrentHashMap<String, FutureTask<ParsedAlignment>> parsing = new ConcurrentHashMap<>();
+
+
+
+	/**
+	 * Request a memory budget for the cache. The cache is shared by every sampler in this JVM, 
+	 * so its budget is the largest one requested, regardless of the order of the requests. A budget of 0 disables caching
+	 * @param megabytes
+	 */
+	public static void requestBudget(long megabytes) {
+		synchronized (cache) {
+			long bytes = megabytes * 1024 * 1024;
+			budget = budgetRequested ? Math.max(budget, bytes) : bytes;
+			budgetRequested = true;
+			evict();
+		}
+	}
+
+
+	/**
+	 * Get the parsed alignment of this file, parsing it only if it is not already cached
+	 * @param wfile
+	 * @return
+	 * @throws IOException
+	 */
+	public static ParsedAlignment get(WeightedFile wfile) throws IOException {
+
+		String key = wfile.getFilePath();
+		synchronized (cache) {
+			ParsedAlignment parsed = cache.get(key);
+			if (parsed != null) return parsed;
+		}
+
+
+		// Parse it, unless another thread is already parsing it
+		FutureTask<ParsedAlignment> task = new FutureTask<>(() -> parse(wfile));
+		FutureTask<ParsedAlignment> existing = parsing.putIfAbsent(key, task);
+		if (existing != null) return waitFor(existing);
+		try {
+			task.run();
+			ParsedAlignment parsed = waitFor(task);
+
+			// Cache it before the task is removed, so that later calls find it in one place or the other
+			synchronized (cache) {
+				if (parsed.getSize() <= budget) {
+					cache.put(key, parsed);
+					used += parsed.getSize();
+					evict();
+				}
+			}
+			return parsed;
+
+		} finally {
+			parsing.remove(key, task);
+		}
+
+	}
+
+
+	/**
+	 * Parse the file, straight out of any archives on the path
+	 * @param wfile
+	 * @return
+	 * @throws IOException
+	 */
+	private static ParsedAlignment parse(WeightedFile wfile) throws IOException {
+		NexusParser parser = new NexusParser();
+		try (Reader reader = wfile.openReader()) {
+			parser.parseFile(wfile.getBaseName(), reader);
+		}
+		return new ParsedAlignment(parser);
+	}
+
+
+	/**
+	 * Wait for a parse to finish
+	 * @param task
+	 * @return
+	 * @throws IOException
+	 */
+	private static ParsedAlignment waitFor(FutureTask<ParsedAlignment> task) throws IOException {
+		try {
+			return task.get();
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+			if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+			throw new IOException(e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException(e);
+		}
+	}
+
+
+	/**
+	 * Remove the least recently used alignments until the cache is within budget. The caller must hold the cache lock
+	 */
+	private static void evict() {
+		Iterator<Map.Entry<String, ParsedAlignment>> iter = cache.entrySet().iterator();
+		while (used > budget && iter.hasNext()) {
+			used -= iter.next().getValue().getSize();
+			iter.remove();
+		}
+	}
+
+
+
+
+	/**
+	 * The contents of a parsed nexus file
+	 */
+	public static class ParsedAlignment {
+		
+		
+		// Index of the whole (unpartitioned) alignment in the neighbour joining tree cache
+		public static final int WHOLE_ALIGNMENT = -1;
+
+
+		final Alignment alignment;
+		final List<String> partitionIDs;
+		final List<String> partitionFilters;
+		final List<MRCAPrior> calibrations;
+		final long size;
+		
+		// Neighbour joining trees, per partition. Each tree is built by the first thread to ask for it, outside of the map
+		final ConcurrentHashMap<Integer, FutureTask<Tree>> njTrees;
+
+
+		ParsedAlignment(NexusParser parser) {
+
+			this.alignment = parser.m_alignment;
+			this.partitionIDs = new ArrayList<>();
+			this.partitionFilters = new ArrayList<>();
+			for (Alignment aln : parser.filteredAlignments) {
+				FilteredAlignment filtered = (FilteredAlignment) aln;
+				this.partitionIDs.add(filtered.getID());
+				this.partitionFilters.add(filtered.filterInput.get());
+			}
+			this.calibrations = parser.calibrations == null ? new ArrayList<>() : Collections.unmodifiableList(new ArrayList<>(parser.calibrations));
+			
+			// Initialise the calibration taxon sets now, so that they are only read from then on
+			for (MRCAPrior prior : this.calibrations) {
+				if (prior.taxonsetInput.get() != null) prior.taxonsetInput.get().initAndValidate();
+			}
+
+			long nchar = 0;
+			for (Sequence seq : this.alignment.sequenceInput.get()) nchar += seq.dataInput.get().length();
+			this.size = nchar * BYTES_PER_CHARACTER;
+			this.njTrees = new ConcurrentHashMap<>();
+
+		}
+
+
+		/**
+		 * The full alignment
+		 * @return
+		 */
+		public Alignment getAlignment() {
+			return this.alignment;
+		}
+
+
+		/**
+		 * Number of partitions (charsets) in the file
+		 * @return
+		 */
+		public int getNumPartitions() {
+			return this.partitionIDs.size();
+		}
+
+
+		/**
+		 * Build a new filtered alignment for this partition
+		 * @param index
+		 * @return
+		 */
+		public FilteredAlignment getPartition(int index) {
+			return this.newFilteredAlignment(this.partitionIDs.get(index), this.partitionFilters.get(index));
+		}
+
+
+		/**
+		 * Build a new filtered alignment of the cached alignment
+		 * The inputs are set directly rather than through initByName, which would add it to the outputs of the cached alignment. 
+		 * Those outputs are not thread safe, and would otherwise accumulate a reference to every partition built from it
+		 * @param id
+		 * @param filter
+		 * @return
+		 */
+		private FilteredAlignment newFilteredAlignment(String id, String filter) {
+			FilteredAlignment partition = new FilteredAlignment();
+			partition.setID(id);
+			partition.alignmentInput.set(this.alignment);
+			partition.filterInput.set(filter);
+			partition.initAndValidate();
+			return partition;
+		}
+
+
+		/**
+		 * Name of this partition
+		 * @param index
+		 * @return
+		 */
+		public String getPartitionID(int index) {
+			return this.partitionIDs.get(index);
+		}
+
+
+		/**
+		 * All calibrations in the file
+		 * @return
+		 */
+		public List<MRCAPrior> getCalibrations() {
+			return this.calibrations;
+		}
+
+
+		/**
+		 * Get the neighbour joining tree of this partition, building it only the first time
+		 * The tree is not attached to the alignment and must not be modified
+		 * @param index - partition index, or WHOLE_ALIGNMENT
+		 * @param aln - an alignment containing the sites of this partition
+		 * @return
+		 */
+		public Tree getNJTree(int index, Alignment aln) {
+			
+			// Build it, unless another thread is already building it
+			FutureTask<Tree> task = this.njTrees.get(index);
+			if (task == null) {
+				FutureTask<Tree> newTask = new FutureTask<>(() -> this.buildNJTree(aln));
+				task = this.njTrees.putIfAbsent(index, newTask);
+				if (task == null) {
+					task = newTask;
+					task.run();
+				}
+			}
+			
+			try {
+				return task.get();
+			} catch (ExecutionException e) {
+				this.njTrees.remove(index, task);
+				throw new IllegalArgumentException("Error building the neighbour joining tree of partition " + index + ": " + e.getCause().getMessage());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IllegalArgumentException("Interrupted while building the neighbour joining tree of partition " + index);
+			}
+			
+		}
+		
+		
+		/**
+		 * Cluster the alignment by neighbour joining
+		 * @param aln
+		 * @return
+		 */
+		private Tree buildNJTree(Alignment aln) {
+			
+			// The cached alignment is shared, so cluster a private view of it instead
+			Alignment taxa = aln == this.alignment ? this.newFilteredAlignment(this.alignment.getID(), "1-" + this.alignment.getSiteCount()) : aln;
+			
+			// Set estimate to false so that the tree is still calculated even in -resume mode
+			ClusterTree cluster = new ClusterTree();
+			cluster.initByName("clusterType", "neighborjoining", "taxa", taxa, "estimate", false);
+			taxa.getOutputs().remove(cluster);
+			return new Tree(cluster.getRoot().copy());
+			
+		}
+		
+		
+		/**
+		 * Whether the neighbour joining tree of this partition has already been built
+		 * @param index
+		 * @return
+		 */
+		public boolean hasNJTree(int index) {
+			FutureTask<Tree> task = this.njTrees.get(index);
+			return task != null && task.isDone();
+		}
+
+
+		/**
+		 * Approximate memory used by this alignment (bytes)
+		 * @return
+		 */
+		public long getSize() {
+			return this.size;
+		}
+
+	}
+
+
+}
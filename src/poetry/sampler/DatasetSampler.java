@@ -7,6 +7,12 @@ import java.lang.reflect.Field;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 import org.w3c.dom.Document;
@@ -27,17 +33,19 @@ import beast.evolution.alignment.TaxonSet;
 import beast.evolution.datatype.Aminoacid;
 import beast.evolution.datatype.DataType;
 import beast.evolution.datatype.Nucleotide;
+import beast.evolution.tree.Tree;
 import beast.evolution.tree.TreeInterface;
 import beast.evolution.tree.TreeUtils;
 import beast.math.distributions.MRCAPrior;
 import beast.math.distributions.ParametricDistribution;
-import beast.util.ClusterTree;
-import beast.util.NexusParser;
 import beast.util.Randomizer;
 import beast.util.XMLProducer;
 import poetry.XMLSimProducer;
 import poetry.functions.XMLFunction;
+import poetry.sampler.AlignmentCache.ParsedAlignment;
 import poetry.util.BEAST2Weka;
+import poetry.util.DatasetCatalogue;
+import poetry.util.ReplicateContext;
 import poetry.util.WeightedFile;
 import poetry.util.XMLUtils;
 
@@ -52,6 +60,13 @@ public class DatasetSampler extends Alignment implements XMLSampler  {
 	final public Input<List<String>> norepeatsInput = new Input<>("norepeat", "ids of elements that should not be repeated 1x for each partition", new ArrayList<>());
 	
 	final public Input<RealParameter> clockRateInput = new Input<>("clock.rate", "The clock rate parameter. If there are MRCA priors, this will create a clock rate prior.");
+	final public Input<Integer> cacheSizeInput = new Input<>("cacheSize", "Memory budget (MB) for caching parsed alignment files between samples. "
+			+ "The cache is shared by every sampler in this JVM, and uses the largest budget requested. "
+			+ "Set to zero to parse the file every time (default 512)", 512);
+	final public Input<Integer> njThreadsInput = new Input<>("njThreads", "Number of threads used to build the neighbour joining trees of the "
+			+ "sampled partitions. Trees are cached per file and partition (default 1)", 1);
+	final public Input<File> catalogueInput = new Input<>("catalogue", "A dataset catalogue built by BuildDatasetCatalogue. The proportion of gaps and "
+			+ "tree height of catalogued partitions are looked up instead of being recomputed");
 	
 	
 	
@@ -60,6 +75,10 @@ public class DatasetSampler extends Alignment implements XMLSampler  {
 	protected int maxNumPartitions;
 	protected WeightedFile sampledFile;
 	protected List<Alignment> partitions;
+	protected List<Integer> partitionIndices;
+	protected ParsedAlignment parsed;
+	protected Integer partitionSeed; // Set by drawSample, otherwise partitions are subsampled with Randomizer
+	protected DatasetCatalogue catalogue;
 	protected List<String> norepeats;
 	protected DataType datatype;
 	protected boolean hasBegun;
@@ -67,6 +86,13 @@ public class DatasetSampler extends Alignment implements XMLSampler  {
 	TreeInterface tree;
 	//SimpleRandomTree init;
 	
+	// Builds neighbour joining trees for every sampler in this JVM. Idle threads are released, and they do not stop the JVM from exiting
+	private static final ExecutorService njPool = Executors.newCachedThreadPool(r -> {
+		Thread thread = new Thread(r, "nj");
+		thread.setDaemon(true);
+		return thread;
+	});
+	
 	// Clock rate lognormal priors
 	protected RealParameter clockRate;
 	protected double clockPriorMean;
@@ -83,6 +109,9 @@ public class DatasetSampler extends Alignment implements XMLSampler  {
 		if (this.maxNumPartitions < 0) {
 			throw new IllegalArgumentException("Please set 'partitions' to at least 0");
 		}
+		if (njThreadsInput.get() <= 0) {
+			throw new IllegalArgumentException("Please set 'njThreads' to at least 1");
+		}
 		if (this.numFiles == 0) {
 			throw new IllegalArgumentException("Please provide at least 1 alignment file");
 		}
@@ -93,6 +122,15 @@ public class DatasetSampler extends Alignment implements XMLSampler  {
 		
 		this.norepeats = norepeatsInput.get();
 		this.datatype = null;
+		AlignmentCache.requestBudget(cacheSizeInput.get());
+		this.catalogue = null;
+		if (catalogueInput.get() != null) {
+			try {
+				this.catalogue = DatasetCatalogue.load(catalogueInput.get());
+			} catch (IOException e) {
+				throw new IllegalArgumentException("Error loading catalogue " + catalogueInput.get().getPath() + ": " + e.getMessage());
+			}
+		}
 		//this.init = this.getTreeInitialiser();
 		this.clockRate = clockRateInput.get();
 		
@@ -165,32 +203,55 @@ public class DatasetSampler extends Alignment implements XMLSampler  {
 	 */
 	@Override
 	public void reset() {
-		
 		this.hasBegun = true;
+		this.sampledFile = WeightedFile.sampleFile(this.filesInput.get());
+		this.partitionSeed = null;
+		this.loadSample();
+	}
+	
+	
+	/**
+	 * Make all random draws of a reset: which alignment to use, and a seed for subsampling its partitions
+	 * This is cheap, so that when several threads share the random number generator (see SimulateXML.runParallel) 
+	 * only this step needs to hold it. The partitions are then subsampled with their own random number generator, 
+	 * so they differ from those of reset
+	 */
+	public void drawSample() {
+		this.hasBegun = true;
+		this.sampledFile = WeightedFile.sampleFile(this.filesInput.get());
+		this.partitionSeed = Randomizer.nextInt();
+	}
+	
+	
+	/**
+	 * Open the sampled alignment, and subsample its partitions
+	 * After drawSample, this does not use the random number generator
+	 */
+	public void loadSample() {
 		
-		// Sample an alignment and set this object's inputs accordingly
+		// This object is initialised with only the sampled sites (see shrinkAlignment)
 		this.sequenceInput.get().clear();
-		NexusParser parser = this.sampleAlignment();
-		Alignment aln = parser.m_alignment;
+		ParsedAlignment parsed = this.parseAlignment();
+		this.parsed = parsed;
+		Alignment aln = parsed.getAlignment();
 		this.datatype = aln.getDataType();
 		
 		
 		
 		System.out.println("Sampling alignment: " +  this.sampledFile.getFilePath());
-		this.initAlignment(aln.sequenceInput.get(), aln.dataTypeInput.get());
 		
 		// Subsample partitions from the alignment
 		this.partitions = null; // Clear some memory
-		this.partitions = this.samplePartitions(parser);
+		this.partitions = this.samplePartitions(parsed);
 		System.out.println("Subsampling " + this.partitions.size() + " partitions from the alignment");
 		
 		
 		// MRCA priors (if applicable)
-		this.processMRCAPriors(parser);
+		this.processMRCAPriors(parsed);
 		
 		
 		// Remove unused sites from the main alignment
-		this.shrinkAlignment(parser);
+		this.shrinkAlignment(parsed);
 		
 		
 	}
@@ -199,17 +260,17 @@ public class DatasetSampler extends Alignment implements XMLSampler  {
 	
 	/**
 	 * Record all MRCA priors and use this to come up with a clock rate prior (for naughty Bayesians)
-	 * @param parser
+	 * @param parsed
 	 */
-	protected void processMRCAPriors(NexusParser parser) {
+	protected void processMRCAPriors(ParsedAlignment parsed) {
 		
 		if (this.clockRate == null) return;
 		
 		
 		// Get calibrations which actually have a prior
 		this.calibrations = new ArrayList<>();
-		if (parser.calibrations != null) {
-			for (MRCAPrior prior : parser.calibrations) {
+		if (parsed.getCalibrations() != null) {
+			for (MRCAPrior prior : parsed.getCalibrations()) {
 				if (prior.distInput.get() != null) {
 					//prior.isMonophyleticInput.set("false");
 					this.calibrations.add(prior);
@@ -231,18 +292,15 @@ public class DatasetSampler extends Alignment implements XMLSampler  {
 			for (int i = 0; i < numCalibrations; i ++) crownRates[i] = 0;
 			
 			
-			ClusterTree tree = new ClusterTree();
-			
-			
 			// For each partition
-			for (Alignment aln : this.partitions) {
-				tree.initByName("clusterType", "neighborjoining", "taxa", aln);
+			for (Tree tree : this.getNJTrees()) {
 				
 				// Get mrca node height
 				for (int i = 0; i < this.calibrations.size(); i ++) {
 					MRCAPrior prior = this.calibrations.get(i);
+					
+					// The taxon set is shared with other samplers, and was initialised when the file was parsed (see AlignmentCache)
 					TaxonSet taxa = prior.taxonsetInput.get();
-					taxa.initAndValidate();
 					
 					// Node height (substitutions per site)
 					beast.evolution.tree.Node mrca = TreeUtils.getCommonAncestorNode(tree, taxa.getTaxaNames());
@@ -305,49 +363,57 @@ public class DatasetSampler extends Alignment implements XMLSampler  {
 	
 	/**
 	 * Remove unused sites in the alignment to save both memory and disk space
-	 * @param parser
+	 * The selected sites of every partition are written column by column into one state buffer per taxon,
+	 * and each taxon's sequence is only encoded as a string once
+	 * @param parsed
 	 */
-	private void shrinkAlignment(NexusParser parser) {
-		
+	private void shrinkAlignment(ParsedAlignment parsed) {
 		
-		// Small alignment
-		List<String> smallAln = new ArrayList<>();
-		for (int i = 0; i < this.sequences.size(); i ++) smallAln.add("");
 		
 		// Adjust filters to apply to the subsequence
+		List<Sequence> fullSeqs = parsed.getAlignment().sequenceInput.get();
+		int ntaxa = fullSeqs.size();
 		int start = 1;
 		int[] starts = new int[this.partitions.size()];
 		int[] stops = new int[this.partitions.size()];
 		for (int j = 0; j < this.partitions.size(); j ++) {
-			
-			FilteredAlignment filtered = (FilteredAlignment) this.partitions.get(j);
-			
-			int seqlen = 0;
-			for (int i = 0; i < smallAln.size(); i ++) {
-				String taxon = filtered.getTaxaNames().get(i);
-				String seq = filtered.getSequenceAsString(taxon);
-				smallAln.set(i, smallAln.get(i) + seq);
-				seqlen = seq.length();
-			}
-			
-			int stop = start + seqlen - 1;
+			int stop = start + this.partitions.get(j).getSiteCount() - 1;
 			starts[j] = start;
 			stops[j] = stop;
 			start = stop + 1;
-			
+		}
+		
+		
+		// Small alignment: one pass over the filtered sites of each partition
+		int[][] smallAln = new int[ntaxa][start - 1];
+		for (int j = 0; j < this.partitions.size(); j ++) {
+			FilteredAlignment filtered = (FilteredAlignment) this.partitions.get(j);
+			int offset = starts[j] - 1;
+			for (int site = 0; site < filtered.getSiteCount(); site ++) {
+				int[] pattern = filtered.getPattern(filtered.getPatternIndex(site));
+				for (int i = 0; i < ntaxa; i ++) {
+					smallAln[i][offset + site] = pattern[i];
+				}
+			}
 		}
 		
 		
 		// Create alignment
 		List<Sequence> seqs = new ArrayList<>();
-		for (int i = 0; i < smallAln.size(); i ++) {
-			String taxon = this.sequences.get(i).getTaxon();
-			String seq = smallAln.get(i);
+		for (int i = 0; i < ntaxa; i ++) {
+			String taxon = fullSeqs.get(i).getTaxon();
+			String seq;
+			try {
+				seq = this.datatype.encodingToString(smallAln[i]);
+			} catch (Exception e) {
+				throw new IllegalArgumentException("Cannot encode the sequence of " + taxon + ": " + e.getMessage());
+			}
+			smallAln[i] = null; // Clear some memory
 			Sequence sequence = new Sequence(taxon, seq);
 			seqs.add(sequence);
 			
 		}
-		this.initAlignment(seqs, parser.m_alignment.dataTypeInput.get());
+		this.initAlignment(seqs, parsed.getAlignment().dataTypeInput.get());
 		
 		
 		// Reinitialise filters
@@ -422,7 +488,7 @@ public class DatasetSampler extends Alignment implements XMLSampler  {
 				if (repeat) XMLUtils.XMLReplace(copy, "$(partition)", pName);
 				
 				// Add this into the XML subtree
-				root.getParentNode().insertBefore(copy, root);
+				XMLUtils.insertBefore(root.getParentNode(), copy, root);
 				
 				// Make sure all ids are unique
 				for (Node child : XMLUtils.getAllElements(copy)) {
@@ -440,7 +506,7 @@ public class DatasetSampler extends Alignment implements XMLSampler  {
 			}
 			
 			// Remove the original subtree
-			root.getParentNode().removeChild(root);
+			XMLUtils.removeChild(root.getParentNode(), root);
 			
 
 			
@@ -468,8 +534,8 @@ public class DatasetSampler extends Alignment implements XMLSampler  {
 	        if (children.getLength() > 0) importedNode.removeChild(children.item(0));
 	        
 	        // Add the data to the xml
-	        thisEle.getParentNode().insertBefore(importedNode, thisEle);
-	        doc.renameNode(importedNode, null, "data");
+	        XMLUtils.insertBefore(thisEle.getParentNode(), importedNode, thisEle);
+	        XMLUtils.renameNode(doc, importedNode, null, "data");
 	        
 	        
 			
@@ -496,13 +562,13 @@ public class DatasetSampler extends Alignment implements XMLSampler  {
 			Element clockRatePrior = doc.createElement("prior");
 			clockRatePrior.setAttribute("name", "distribution");
 			clockRatePrior.setAttribute("x", "@" + this.clockRate.getID());
-			prior.appendChild(clockRatePrior);
+			XMLUtils.appendChild(prior, clockRatePrior);
 			
 			Element logNormal = doc.createElement("LogNormal");
 			logNormal.setAttribute("name", "distr");
 			logNormal.setAttribute("M", "" + this.clockPriorMean);
 			logNormal.setAttribute("S", "" + this.clockPriorSD);
-			clockRatePrior.appendChild(logNormal);
+			XMLUtils.appendChild(clockRatePrior, logNormal);
 			
 			// MRCA priors
 			XMLSimProducer producer = new XMLSimProducer();
@@ -513,10 +579,10 @@ public class DatasetSampler extends Alignment implements XMLSampler  {
 				Document priorDoc = XMLUtils.loadXMLFromString(xml);
 				Element priorEle = XMLUtils.getElementById(priorDoc, mrcaPrior.getID());
 				Element imported = (Element) doc.importNode(priorEle, true);
-				doc.renameNode(imported, null, "prior");
+				imported = XMLUtils.renameNode(doc, imported, null, "prior");
 				imported.setAttribute("tree", "@" + this.tree.getID());
 				imported.setAttribute("name", "distribution");
-				prior.appendChild(imported);
+				XMLUtils.appendChild(prior, imported);
 				
 				// Remove id's from distr and all if its descendents
 				for (Element distr : XMLUtils.getElementsByName(imported, "distr")) {
@@ -589,25 +655,21 @@ public class DatasetSampler extends Alignment implements XMLSampler  {
 	
 	
 	/**
-	 * Sample an alignment from the list of files, uniformly at random
+	 * Open the alignment sampled by drawSample
+	 * The file is only parsed if it is not already in the AlignmentCache
 	 * @return
-	 * @throws IOException
 	 */
-	protected NexusParser sampleAlignment() {
+	protected ParsedAlignment parseAlignment() {
 		
-		// Sample an alignment proportionally to its weight
-		NexusParser parser = new NexusParser();
-		this.sampledFile =  WeightedFile.sampleFile(this.filesInput.get());
+		ParsedAlignment parsed = null;
 		try {
-			File file = this.sampledFile.unzipFile();
-			parser.parseFile(file);
-			this.sampledFile.close();
+			parsed = AlignmentCache.get(this.sampledFile);
 		} catch(IOException e) {
 			Log.err("Error opening " + this.sampledFile.getFilePath());
 			System.exit(1);
 		}
 		
-		return parser;
+		return parsed;
 	}
 	
 	
@@ -617,28 +679,46 @@ public class DatasetSampler extends Alignment implements XMLSampler  {
 	 * @return 1 alignment per partition
 	 * @throws IOException 
 	 */
-	protected List<Alignment> samplePartitions(NexusParser parser) {
+	protected List<Alignment> samplePartitions(ParsedAlignment parsed) {
 		
 		
 		List<Alignment> partitions = new ArrayList<Alignment>();
+		this.partitionIndices = new ArrayList<>();
 
 		// Just 1 partition?
-		int numPart = parser.filteredAlignments.size();
+		int numPart = parsed.getNumPartitions();
 		
 		if (numPart == 1 || this.maxNumPartitions == 0) {
-			partitions.add(parser.m_alignment);
+			partitions.add(parsed.getAlignment());
+			this.partitionIndices.add(ParsedAlignment.WHOLE_ALIGNMENT);
 			
 		}else {
 		
 
-			// Sample the number of partitions to subsample (UAR)
-			int numPartSamples = Randomizer.nextInt(Math.min(this.maxNumPartitions, numPart)) + 1;
-
-			// Subsample this many partitions
-			int[] indices = Randomizer.permuted(numPart);
+			// Sample the number of partitions to subsample (UAR), and then subsample this many partitions
+			int numPartSamples;
+			int[] indices;
+			if (this.partitionSeed == null) {
+				numPartSamples = Randomizer.nextInt(Math.min(this.maxNumPartitions, numPart)) + 1;
+				indices = Randomizer.permuted(numPart);
+			}else {
+				
+				// Use the seed from drawSample
+				Random random = new Random(this.partitionSeed);
+				numPartSamples = random.nextInt(Math.min(this.maxNumPartitions, numPart)) + 1;
+				indices = new int[numPart];
+				for (int i = 0; i < numPart; i ++) indices[i] = i;
+				for (int i = numPart - 1; i > 0; i --) {
+					int j = random.nextInt(i + 1);
+					int tmp = indices[i];
+					indices[i] = indices[j];
+					indices[j] = tmp;
+				}
+			}
 			for (int i = 0; i < numPartSamples; i ++) {
 				int partitionIndex = indices[i];
-				partitions.add(parser.filteredAlignments.get(partitionIndex));
+				partitions.add(parsed.getPartition(partitionIndex));
+				this.partitionIndices.add(partitionIndex);
 			}
 		
 		}
@@ -862,10 +942,42 @@ public class DatasetSampler extends Alignment implements XMLSampler  {
 	 * @return
 	 */
 	public double getProportionGaps() {
+		
+		// Look up the catalogue
+		List<DatasetCatalogue.Entry> entries = this.getCatalogueEntries();
+		if (entries != null) {
+			long numGaps = 0;
+			long nchars = 0;
+			for (DatasetCatalogue.Entry entry : entries) {
+				numGaps += entry.getNgaps();
+				nchars += (long) entry.getNtaxa() * entry.getNsites();
+			}
+			return 1.0 * numGaps / nchars;
+		}
+		
 		return BEAST2Weka.getPgaps(this.partitions);
 	}
 	
 	
+	/**
+	 * The catalogue entry of each sampled partition
+	 * @return the entries, or null if there is no catalogue or any partition is not catalogued
+	 */
+	protected List<DatasetCatalogue.Entry> getCatalogueEntries() {
+		
+		if (this.catalogue == null || this.partitions == null) return null;
+		List<DatasetCatalogue.Entry> entries = new ArrayList<>();
+		for (int index : this.partitionIndices) {
+			String partitionID = index == ParsedAlignment.WHOLE_ALIGNMENT ? DatasetCatalogue.WHOLE_ALIGNMENT : this.parsed.getPartitionID(index);
+			DatasetCatalogue.Entry entry = this.catalogue.get(this.sampledFile.getFilePath(), partitionID);
+			if (entry == null) return null;
+			entries.add(entry);
+		}
+		return entries;
+		
+	}
+	
+	
 	
 
 
@@ -887,7 +999,80 @@ public class DatasetSampler extends Alignment implements XMLSampler  {
 	 * @return
 	 */
 	public double getEstimatedTreeHeight() {
-		return BEAST2Weka.getTreeHeight(this.partitions);
+		
+		if (this.partitions == null) return 0;
+		
+		// Look up the catalogue
+		List<DatasetCatalogue.Entry> entries = this.getCatalogueEntries();
+		if (entries != null) {
+			double weightedMeanHeight = 0;
+			int nsitesTotal = 0;
+			for (DatasetCatalogue.Entry entry : entries) {
+				weightedMeanHeight += entry.getHeight() * entry.getNsites();
+				nsitesTotal += entry.getNsites();
+			}
+			return weightedMeanHeight / nsitesTotal;
+		}
+		
+		// Take the weighted-mean height across all partitions
+		List<Tree> trees = this.getNJTrees();
+		double weightedMeanHeight = 0;
+		int nsitesTotal = 0;
+		for (int j = 0; j < trees.size(); j ++) {
+			double height = trees.get(j).getRoot().getHeight();
+			double nsites = this.partitions.get(j).getSiteCount();
+			weightedMeanHeight += height * nsites;
+			nsitesTotal += nsites;
+		}
+		
+		return weightedMeanHeight / nsitesTotal;
+	}
+	
+	
+	
+	/**
+	 * Get the neighbour joining tree of each sampled partition
+	 * Trees are cached with the parsed file, so each partition of each file is only clustered once
+	 * If njThreads > 1 then the trees which are not yet cached are built in parallel
+	 * @return
+	 */
+	protected List<Tree> getNJTrees() {
+		
+		
+		// Build the missing trees in parallel
+		int nthreads = njThreadsInput.get();
+		List<Integer> missing = new ArrayList<>();
+		for (int j = 0; j < this.partitions.size(); j ++) {
+			if (!this.parsed.hasNJTree(this.partitionIndices.get(j))) missing.add(j);
+		}
+		if (nthreads > 1 && missing.size() > 1) {
+			
+			// At most njThreads tasks, which share the missing trees between them
+			AtomicInteger next = new AtomicInteger(0);
+			List<Future<?>> futures = new ArrayList<>();
+			for (int t = 0; t < Math.min(nthreads, missing.size()); t ++) {
+				futures.add(njPool.submit(ReplicateContext.wrap(() -> {
+					int k;
+					while ((k = next.getAndIncrement()) < missing.size()) {
+						int j = missing.get(k);
+						this.parsed.getNJTree(this.partitionIndices.get(j), this.partitions.get(j));
+					}
+				})));
+			}
+			try {
+				for (Future<?> future : futures) future.get();
+			} catch (InterruptedException | ExecutionException e) {
+				throw new IllegalArgumentException("Error building neighbour joining trees: " + e.getMessage());
+			}
+		}
+		
+		
+		List<Tree> trees = new ArrayList<>();
+		for (int j = 0; j < this.partitions.size(); j ++) {
+			trees.add(this.parsed.getNJTree(this.partitionIndices.get(j), this.partitions.get(j)));
+		}
+		return trees;
+		
 	}
 
 
@@ -0,0 +1,200 @@
+package poetry.sampler;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import beast.core.util.Log;
+import poetry.util.WeightedFile;
+import poetry.util.XMLUtils;
+
+
+/**
+ * A model xml fragment which has been parsed once and compiled into a list of instructions
+ * The 'remove' tags are stripped at compile time, and the remaining 'append', 'override' and 'populate' tags
+ * are classified in the order in which ModelSampler applies them
+ * Fragments are shared by all ModelSamplers in this JVM and are never modified. Their nodes are only read by importNode,
+ * which is done while holding the fragment's lock because the DOM does not guarantee thread-safe reads
+ * @author jdou557
+ *
+ */
+public class ModelFragment {
+
+
+	private static final ConcurrentHashMap<String, ModelFragment> cache = new ConcurrentHashMap<>();
+
+
+	public enum InstructionType {
+		append, override, populate
+	}
+
+
+	final Document fragment;
+	final List<Instruction> instructions;
+
+
+
+	/**
+	 * Get the compiled fragment of this file, parsing it only the first time it is requested
+	 * @param wfile
+	 * @return
+	 * @throws Exception
+	 */
+	public static ModelFragment get(WeightedFile wfile) throws Exception {
+
+		String key = wfile.getFilePath();
+		ModelFragment compiled = cache.get(key);
+		if (compiled != null) return compiled;
+
+
+		// Parse
+		Document sampled;
+		try {
+			File file = wfile.unzipFile();
+			sampled = XMLUtils.loadXMLFromFile(file.getPath());
+			wfile.close();
+		} catch (Exception e) {
+			Log.err("Encountered a problem when parsing " + wfile.getFilePath());
+			throw e;
+		}
+
+
+		// Another thread may have compiled it in the meantime. Keep whichever came first
+		compiled = new ModelFragment(sampled);
+		ModelFragment existing = cache.putIfAbsent(key, compiled);
+		return existing != null ? existing : compiled;
+
+	}
+
+
+
+	private ModelFragment(Document sampled) {
+
+		this.fragment = sampled;
+		Element root = (Element) sampled.getFirstChild();
+
+
+		// 1) Delete the 'remove' tags
+		for (Node remove : XMLUtils.nodeListToList(root.getElementsByTagName("remove"))) {
+			remove.getParentNode().removeChild(remove);
+		}
+
+
+		// 2) Append the children of 'append' tags to the element with matching id (or the xml head)
+		List<Instruction> instructions = new ArrayList<>();
+		for (Node append : XMLUtils.nodeListToList(root.getElementsByTagName("append"))) {
+			Element element = (Element) append;
+			String id = element.hasAttribute("id") ? element.getAttribute("id") : null;
+			instructions.add(new Instruction(InstructionType.append, id, element, null, XMLUtils.nodeListToList(element.getChildNodes())));
+		}
+
+
+		// 3) Replace elements with the 'override' tags
+		for (Node override : XMLUtils.nodeListToList(root.getElementsByTagName("override"))) {
+			Element element = (Element) override;
+			String id = element.hasAttribute("id") ? element.getAttribute("id") : null;
+			String name = element.hasAttribute("name") ? element.getAttribute("name") : null;
+			instructions.add(new Instruction(InstructionType.override, id, element, name, null));
+		}
+
+
+		// 4) Populate sections using the 'populate' tag
+		for (Node populate : XMLUtils.nodeListToList(root.getElementsByTagName("populate"))) {
+			Element element = (Element) populate;
+			instructions.add(new Instruction(InstructionType.populate, element.getAttribute("id"), element, element.getAttribute("function"), null));
+		}
+
+		this.instructions = Collections.unmodifiableList(instructions);
+
+	}
+
+
+	/**
+	 * The compiled instructions, in the order they should be applied
+	 * @return
+	 */
+	public List<Instruction> getInstructions() {
+		return this.instructions;
+	}
+
+
+	/**
+	 * Import a node of this fragment into the document
+	 * @param doc
+	 * @param node
+	 * @return
+	 */
+	public Node importInto(Document doc, Node node) {
+		synchronized (this) {
+			return doc.importNode(node, true);
+		}
+	}
+
+
+
+	/**
+	 * A single append, override or populate tag
+	 */
+	public static class Instruction {
+
+		final InstructionType type;
+		final String id;
+		final Element element;
+		final String arg;
+		final List<Node> children;
+
+		Instruction(InstructionType type, String id, Element element, String arg, List<Node> children) {
+			this.type = type;
+			this.id = id;
+			this.element = element;
+			this.arg = arg;
+			this.children = children == null ? null : Collections.unmodifiableList(children);
+		}
+
+
+		public InstructionType getType() {
+			return this.type;
+		}
+
+		/**
+		 * The id of the target element. Null if an append or override has no target
+		 * @return
+		 */
+		public String getID() {
+			return this.id;
+		}
+
+		/**
+		 * The tag itself
+		 * @return
+		 */
+		public Element getElement() {
+			return this.element;
+		}
+
+		/**
+		 * The name of an override (null if unnamed), or the function of a populate
+		 * @return
+		 */
+		public String getArg() {
+			return this.arg;
+		}
+
+		/**
+		 * The nodes to append
+		 * @return
+		 */
+		public List<Node> getChildren() {
+			return this.children;
+		}
+
+	}
+
+
+}
@@ -17,6 +17,7 @@ import beast.util.Randomizer;
 import poetry.functions.XMLFunction;
 import poetry.operators.MetaOperator;
 import poetry.util.ESSDerivative;
+import poetry.util.ReplicateContext;
 import poetry.util.XMLUtils;
 
 
@@ -205,7 +206,7 @@ public class POEM extends BEASTObject implements XMLSampler {
 	 */
 	public File getDecisionTreeFile() {
 		if (treesInput.get() == null) return null;
-		return new File(treesInput.get());
+		return ReplicateContext.resolve(treesInput.get());
 	}
 	
 
@@ -222,7 +223,7 @@ public class POEM extends BEASTObject implements XMLSampler {
 		this.operatorID = operator.getAttribute("id");
 		List<Element> subOperators = XMLUtils.getElementsByName(operator, "operator");
 		if (subOperators.isEmpty()) {
-			operator.getParentNode().removeChild(operator);
+			XMLUtils.removeChild(operator.getParentNode(), operator);
 			operator.setAttribute("weight", "0");
 			this.applicableToModel = false;
 			return;
@@ -234,12 +235,12 @@ public class POEM extends BEASTObject implements XMLSampler {
 		logger.setAttribute("id", this.getID() + "Logger");
 		logger.setAttribute("fileName", this.getLoggerFileName());
 		logger.setAttribute("logEvery", "" + this.logEveryInput.get());
-		runnable.appendChild(logger);
+		XMLUtils.appendChild(runnable, logger);
 		
 		// Add all this elements loggables into the logger
 		List<Element> logs = XMLUtils.getElementsByName(thisEle, "log");
 		for (Element log : logs) {
-			logger.appendChild(log.cloneNode(true));
+			XMLUtils.appendChild(logger, log.cloneNode(true));
 			
 			// ESS derivative logger
 			if (false && log.hasAttribute("idref")) {
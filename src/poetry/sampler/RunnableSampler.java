@@ -66,11 +66,11 @@ public class RunnableSampler extends MCMC implements XMLSampler {
 		// Import new runnable and remove this one
 		Element imported = (Element) doc.importNode(runnersSampled.get(0), true);
 		imported.setAttribute("id", this.getID());
-		runnable.getParentNode().insertBefore(imported, runnable);
+		XMLUtils.insertBefore(runnable.getParentNode(), imported, runnable);
 		for (Node child : XMLUtils.nodeListToList(runnable.getChildNodes())){
 			imported.appendChild(child);
 		}
-		runnable.getParentNode().removeChild(runnable);
+		XMLUtils.removeChild(runnable.getParentNode(), runnable);
 		
 		
 		// Remove all file inputs
@@ -81,7 +81,7 @@ public class RunnableSampler extends MCMC implements XMLSampler {
 		// Rename the 'run' to 'runner'
 		// The reason why it is named runner in the first place is to prevent
 		// XMLParser from throwing an exception upon detecting two 'run' elements 
-		doc.renameNode(imported, runnable.getNamespaceURI(), "run");
+		XMLUtils.renameNode(doc, imported, runnable.getNamespaceURI(), "run");
 		
 		
 	}
@@ -0,0 +1,81 @@
+package poetry.tools;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import beast.app.util.Application;
+import beast.core.Description;
+import beast.core.Input;
+import beast.core.Runnable;
+import beast.core.Input.Validate;
+import beast.core.util.Log;
+import beast.evolution.alignment.Alignment;
+import poetry.sampler.AlignmentCache;
+import poetry.sampler.AlignmentCache.ParsedAlignment;
+import poetry.util.DatasetCatalogue;
+import poetry.util.WeightedFile;
+
+
+@Description("Computes the dataset features (ntaxa, nsites, npatterns, gaps, nchar and neighbour joining tree height) of every partition of "
+		+ "a list of nexus files and saves them as a catalogue, which DatasetSampler and the weight samplers can look up instead of recomputing them")
+public class BuildDatasetCatalogue extends Runnable {
+
+
+	final public Input<String> filesInput = new Input<>("files", "Comma-separated list of nexus files (can be zipped). Use the same paths as the "
+			+ "DatasetSampler which will read the catalogue", Validate.REQUIRED);
+	final public Input<File> outInput = new Input<>("out", "The tsv file to save the catalogue to", Validate.REQUIRED);
+
+
+	List<String> files;
+
+
+	@Override
+	public void initAndValidate() {
+		this.files = new ArrayList<>();
+		for (String path : filesInput.get().split(",")) {
+			if (!path.trim().isEmpty()) this.files.add(path.trim());
+		}
+		if (this.files.isEmpty()) throw new IllegalArgumentException("Please provide at least 1 alignment file");
+	}
+
+
+	@Override
+	public void run() throws Exception {
+
+
+		DatasetCatalogue catalogue = new DatasetCatalogue();
+		for (String path : this.files) {
+
+			WeightedFile wfile = new WeightedFile();
+			wfile.initByName("file", path, "desc", path);
+			ParsedAlignment parsed = AlignmentCache.get(wfile);
+			Log.warning("Cataloguing " + path + " (" + parsed.getNumPartitions() + " partitions)");
+
+
+			// Whole alignment
+			Alignment aln = parsed.getAlignment();
+			catalogue.add(wfile.getFilePath(), DatasetCatalogue.WHOLE_ALIGNMENT,
+						DatasetCatalogue.compute(aln, parsed.getNJTree(ParsedAlignment.WHOLE_ALIGNMENT, aln)));
+
+
+			// Each partition
+			for (int i = 0; i < parsed.getNumPartitions(); i ++) {
+				Alignment partition = parsed.getPartition(i);
+				catalogue.add(wfile.getFilePath(), parsed.getPartitionID(i), DatasetCatalogue.compute(partition, parsed.getNJTree(i, partition)));
+			}
+
+		}
+
+		catalogue.write(outInput.get());
+		Log.warning("Done! Saved " + catalogue.size() + " datasets to " + outInput.get().getPath());
+
+	}
+
+
+	public static void main(String[] args) throws Exception {
+		new Application(new BuildDatasetCatalogue(), "Build a catalogue of dataset features", args);
+	}
+
+
+}
@@ -0,0 +1,392 @@
+package poetry.tools;
+
+import java.io.File;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.math3.stat.regression.OLSMultipleLinearRegression;
+
+import beast.app.util.Application;
+import beast.core.Description;
+import beast.core.Input;
+import beast.core.Runnable;
+import beast.core.Input.Validate;
+import beast.core.util.Log;
+import poetry.PoetryAnalyser;
+import poetry.sampler.POEM;
+import poetry.util.BEAST2Weka;
+
+
+@Description("Runs the xml/replicate jobs of a SimulateXML output folder on a fixed number of local worker processes. "
+		+ "Jobs are ordered by their predicted runtime and idle workers steal jobs from busy ones. Queue and run times are saved to a tsv file")
+public class FarmScheduler extends Runnable {
+
+
+	final public Input<File> outInput = new Input<>("out", "The output folder of SimulateXML (containing database.tsv and the xml folders)", Validate.REQUIRED);
+	final public Input<Integer> workersInput = new Input<>("workers", "Number of worker processes to run at once (default: number of processors)",
+			java.lang.Runtime.getRuntime().availableProcessors());
+	final public Input<String> commandInput = new Input<>("command", "The command which runs a replicate. It is run from within the replicate folder "
+			+ "(default: beast -overwrite ../out.xml)", "beast -overwrite ../out.xml");
+	final public Input<File> timesInput = new Input<>("times", "A tsv file to save the queue/run times to (default: schedule.tsv in the out folder)");
+	final public Input<Boolean> rerunInput = new Input<>("rerun", "Also run the jobs which already have a runtime in the database. "
+			+ "Their results will be overwritten (default false)", false);
+
+
+
+	File outFolder;
+	File timesFile;
+	int nworkers;
+	List<String> command;
+	long startTime;
+
+	// Each worker owns a deque. The owner takes from the head (longest job first) and thieves take from the tail
+	List<ConcurrentLinkedDeque<Job>> queues;
+
+	// The first replicate of each xml, which samples the weights used by the other replicates. It writes them to 
+	// weights.tsv as soon as its MCMC starts, and the other replicates wait for that file (see PoetryAnalyser.correctWeights), 
+	// so they only need replicate 1 to have started, not finished
+	HashMap<String, Job> firstReplicates;
+
+
+	@Override
+	public void initAndValidate() {
+
+		this.outFolder = outInput.get();
+		this.nworkers = workersInput.get();
+		if (!this.outFolder.isDirectory()) throw new IllegalArgumentException("Cannot locate folder " + this.outFolder.getPath());
+		if (this.nworkers <= 0) throw new IllegalArgumentException("Please ensure that workers > 0");
+		this.timesFile = timesInput.get() != null ? timesInput.get() : new File(this.outFolder, "schedule.tsv");
+		this.command = Arrays.asList(commandInput.get().trim().split("\\s+"));
+
+	}
+
+
+	@Override
+	public void run() throws Exception {
+
+
+		// Load the jobs and their predicted runtimes
+		List<Job> jobs = this.getJobs();
+		if (jobs.isEmpty()) {
+			Log.warning("There are no jobs to run");
+			return;
+		}
+
+
+		// Longest predicted job first. Replicates of the same xml stay in replicate order
+		Collections.sort(jobs, (a, b) -> {
+			if (a.predicted != b.predicted) return Double.compare(b.predicted, a.predicted);
+			if (!a.xml.equals(b.xml)) return a.xml.compareTo(b.xml);
+			return Integer.compare(a.replicate, b.replicate);
+		});
+
+
+		// Deal the jobs out to the worker with the smallest predicted load
+		this.queues = new ArrayList<>();
+		double[] load = new double[this.nworkers];
+		for (int w = 0; w < this.nworkers; w ++) this.queues.add(new ConcurrentLinkedDeque<>());
+		for (Job job : jobs) {
+			int w = 0;
+			for (int v = 1; v < this.nworkers; v ++) {
+				if (load[v] < load[w]) w = v;
+			}
+			load[w] += job.predicted;
+			this.queues.get(w).addLast(job);
+		}
+		Log.warning("Scheduling " + jobs.size() + " jobs onto " + this.nworkers + " workers");
+
+
+		// Run
+		PrintStream times = new PrintStream(this.timesFile);
+		times.println(POEM.getXMLColumn() + "\t" + POEM.getReplicateColumn() + "\tworker\tpredicted\tqueue.s\trun.s\tstolen\texit");
+		this.startTime = System.currentTimeMillis();
+		ExecutorService pool = Executors.newFixedThreadPool(this.nworkers);
+		List<Future<?>> futures = new ArrayList<>();
+		for (int w = 0; w < this.nworkers; w ++) {
+			final int worker = w;
+			futures.add(pool.submit(() -> {
+				Job job;
+				while ((job = nextJob(worker)) != null) {
+					runJob(job, worker, times);
+				}
+			}));
+		}
+		pool.shutdown();
+		for (Future<?> future : futures) future.get();
+		times.close();
+
+		Log.warning("Done! Saved queue and run times to " + this.timesFile.getPath());
+
+	}
+
+
+
+	/**
+	 * Take the next job from the head of this worker's queue, or steal one from the tail of the worker with the largest remaining predicted load
+	 * A replicate is never started before the first replicate of its xml, because it would only wait for its weights
+	 * @param worker
+	 * @return the job, or null if all queues are empty
+	 */
+	protected Job nextJob(int worker) {
+
+		Job job = this.queues.get(worker).pollFirst();
+		if (job == null) {
+
+			// Steal
+			while (job == null) {
+				int victim = -1;
+				double victimLoad = 0;
+				for (int v = 0; v < this.nworkers; v ++) {
+					double remaining = 0;
+					for (Job j : this.queues.get(v)) remaining += j.predicted;
+					if (victim == -1 || remaining > victimLoad) {
+						victim = v;
+						victimLoad = remaining;
+					}
+				}
+				if (victim == -1 || this.queues.get(victim).isEmpty()) {
+
+					// Another thread may have stolen the final job in the meantime
+					boolean allEmpty = true;
+					for (ConcurrentLinkedDeque<Job> queue : this.queues) allEmpty = allEmpty && queue.isEmpty();
+					if (allEmpty) return null;
+					continue;
+				}
+				job = this.queues.get(victim).pollLast();
+				if (job != null) job.stolen = true;
+			}
+
+		}
+
+
+		// Run the first replicate of this xml first
+		if (job.replicate > 1) {
+			Job first = this.firstReplicates.get(job.xml);
+			if (first != null && !first.started) {
+				for (ConcurrentLinkedDeque<Job> queue : this.queues) {
+					if (queue.remove(first)) {
+						this.queues.get(worker).addFirst(job);
+						return first;
+					}
+				}
+			}
+		}
+
+		return job;
+
+	}
+
+
+	/**
+	 * Run a job in its replicate folder on a new process
+	 * @param job
+	 * @param worker
+	 * @param times
+	 */
+	protected void runJob(Job job, int worker, PrintStream times) {
+
+		job.started = true;
+		long start = System.currentTimeMillis();
+		int exit = -1;
+		try {
+			Log.warning("Worker " + worker + " is starting xml " + job.xml + " replicate " + job.replicate);
+			ProcessBuilder builder = new ProcessBuilder(this.command);
+			builder.directory(job.folder);
+			builder.redirectErrorStream(true);
+			builder.redirectOutput(new File(job.folder, "farm.out"));
+			exit = builder.start().waitFor();
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+		long end = System.currentTimeMillis();
+
+		synchronized (times) {
+			times.println(job.xml + "\t" + job.replicate + "\t" + worker + "\t" + job.predicted + "\t" +
+						(start - this.startTime) / 1000.0 + "\t" + (end - start) / 1000.0 + "\t" + job.stolen + "\t" + exit);
+			times.flush();
+		}
+
+	}
+
+
+
+	/**
+	 * Read the replicate folders and the database, and predict the runtime of each job
+	 * The runtime is predicted by regressing the log runtimes of completed jobs against their log dataset features. If fewer
+	 * than 10 jobs have been completed then ntaxa x npatterns is used, which is enough to order the jobs
+	 * @return
+	 * @throws Exception
+	 */
+	protected List<Job> getJobs() throws Exception {
+
+
+		this.firstReplicates = new HashMap<>();
+		List<Job> jobs = new ArrayList<>();
+		File dbFile = new File(this.outFolder, "database.tsv");
+		LinkedHashMap<String, String[]> db = dbFile.exists() ? PoetryAnalyser.openDatabase(dbFile) : null;
+
+
+		// Features from the database
+		String[] featureNames = new String[] { BEAST2Weka.getNtaxaAttr().name(), BEAST2Weka.getNpatternsAttr().name(), BEAST2Weka.getNpartitionsAttr().name() };
+		HashMap<String, double[]> features = new HashMap<>();
+		List<double[]> trainX = new ArrayList<>();
+		List<Double> trainY = new ArrayList<>();
+		HashSet<String> completed = new HashSet<>();
+		if (db != null) {
+			String[] xmls = db.get(POEM.getXMLColumn());
+			String[] reps = db.get(POEM.getReplicateColumn());
+			String[] runtimes = db.get(POEM.getRuntimeRawColumn());
+			for (int row = 0; row < xmls.length; row ++) {
+
+				String key;
+				try {
+					key = Integer.parseInt(xmls[row]) + "_" + Integer.parseInt(reps[row]);
+				}catch (NumberFormatException e) {
+					continue;
+				}
+				double runtime = runtimes == null ? Double.NaN : parseDouble(runtimes[row]);
+				if (runtime > 0) completed.add(key);
+
+				// Rows with a missing or malformed feature are left out of the model
+				double[] x = new double[featureNames.length];
+				boolean valid = true;
+				for (int f = 0; f < featureNames.length; f ++) {
+					String[] col = db.get(featureNames[f]);
+					if (col == null) continue;
+					double val = parseDouble(col[row]);
+					if (Double.isNaN(val)) {
+						valid = false;
+						break;
+					}
+					x[f] = Math.log(Math.max(1, val));
+				}
+				if (!valid) continue;
+				features.put(key, x);
+
+				if (runtime > 0 && !Double.isInfinite(runtime)) {
+					trainX.add(x);
+					trainY.add(Math.log(runtime));
+				}
+			}
+		}
+
+
+		// Regression
+		double[] beta = null;
+		if (trainY.size() >= 10) {
+			try {
+				OLSMultipleLinearRegression ols = new OLSMultipleLinearRegression();
+				double[] y = new double[trainY.size()];
+				for (int i = 0; i < y.length; i ++) y[i] = trainY.get(i);
+				ols.newSampleData(y, trainX.toArray(new double[0][]));
+				beta = ols.estimateRegressionParameters();
+				Log.warning("Predicting runtimes from " + y.length + " completed jobs");
+			} catch (Exception e) {
+				Log.warning("Could not fit a runtime model: " + e.getMessage());
+				beta = null;
+			}
+		}
+
+
+		// Jobs
+		int nskipped = 0;
+		File[] xmlFolders = this.outFolder.listFiles(f -> f.isDirectory() && f.getName().startsWith("xml"));
+		Arrays.sort(xmlFolders);
+		for (File xmlFolder : xmlFolders) {
+			String xml = xmlFolder.getName().replace("xml", "");
+			int xmlNum;
+			try {
+				xmlNum = Integer.parseInt(xml);
+			}catch (NumberFormatException e) {
+				continue;
+			}
+			File[] repFolders = xmlFolder.listFiles(f -> f.isDirectory() && f.getName().startsWith("replicate"));
+			for (File repFolder : repFolders) {
+
+				int replicate;
+				try {
+					replicate = Integer.parseInt(repFolder.getName().replace("replicate", ""));
+				}catch (NumberFormatException e) {
+					continue;
+				}
+
+				// Do not overwrite finished jobs
+				String key = xmlNum + "_" + replicate;
+				if (!rerunInput.get() && completed.contains(key)) {
+					nskipped ++;
+					continue;
+				}
+
+				// Predict
+				double[] x = features.get(key);
+				double predicted = 1;
+				if (x != null) {
+					if (beta != null) {
+						predicted = beta[0];
+						for (int f = 0; f < x.length; f ++) predicted += beta[f+1] * x[f];
+						predicted = Math.exp(predicted);
+					}else {
+						predicted = Math.exp(x[0] + x[1]);
+					}
+				}
+
+				Job job = new Job(xml, replicate, repFolder, predicted);
+				jobs.add(job);
+				if (replicate == 1) this.firstReplicates.put(xml, job);
+			}
+		}
+		if (nskipped > 0) Log.warning("Skipping " + nskipped + " jobs which have already finished. Set 'rerun' to run them again");
+
+		return jobs;
+
+	}
+
+
+	private static double parseDouble(String val) {
+		try {
+			return Double.parseDouble(val);
+		}catch (Exception e) {
+			return Double.NaN;
+		}
+	}
+
+
+
+	/**
+	 * One replicate of one xml file
+	 */
+	protected static class Job {
+
+		final String xml;
+		final int replicate;
+		final File folder;
+		final double predicted;
+		volatile boolean started = false;
+		volatile boolean stolen = false;
+
+		Job(String xml, int replicate, File folder, double predicted){
+			this.xml = xml;
+			this.replicate = replicate;
+			this.folder = folder;
+			this.predicted = predicted;
+		}
+
+	}
+
+
+	public static void main(String[] args) throws Exception {
+		new Application(new FarmScheduler(), "Run the replicates of a SimulateXML output folder on local worker processes", args);
+	}
+
+
+}
@@ -0,0 +1,121 @@
+package poetry.tools;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import beast.app.util.Application;
+import beast.core.Description;
+import beast.core.Input;
+import beast.core.Runnable;
+import beast.core.util.Log;
+import poetry.distribution.FlexibleDirichlet;
+
+
+@Description("Benchmarks the flexible dirichlet log probability of a whole decision tree leaf against summing the per-instance log probability, "
+		+ "on generated leaves, and checks that both give the same value")
+public class FlexibleDirichletBenchmark extends Runnable {
+
+
+	final public Input<String> instancesInput = new Input<>("instances", "Comma-separated numbers of instances per leaf to benchmark (default 100,1000,10000)", "100,1000,10000");
+	final public Input<Integer> componentsInput = new Input<>("components", "Number of dirichlet components (default 4)", 4);
+	final public Input<Double> tauInput = new Input<>("tau", "Modality tau, which every alpha sums to (default 5)", 5.0);
+	final public Input<Boolean> flexibleInput = new Input<>("flexible", "Use a flexible dirichlet with multinomial probabilities? Otherwise a standard dirichlet (default true)", true);
+	final public Input<Integer> replicatesInput = new Input<>("replicates", "Number of times to time each leaf (default 5)", 5);
+	final public Input<Long> seedInput = new Input<>("seed", "Random seed for generating the leaves (default 1)", 1L);
+
+
+	List<Integer> instances;
+	int ncomponents;
+	double tau;
+	int nreplicates;
+
+
+	@Override
+	public void initAndValidate() {
+		this.instances = new ArrayList<>();
+		for (String n : instancesInput.get().split(",")) {
+			this.instances.add(Integer.parseInt(n.trim()));
+		}
+		this.ncomponents = componentsInput.get();
+		this.tau = tauInput.get();
+		this.nreplicates = replicatesInput.get();
+		if (this.ncomponents < 2) throw new IllegalArgumentException("Please ensure that components > 1");
+		if (this.tau <= 0) throw new IllegalArgumentException("Please ensure that tau > 0");
+		if (this.nreplicates <= 0) throw new IllegalArgumentException("Please ensure that replicates > 0");
+	}
+
+
+	@Override
+	public void run() throws Exception {
+
+
+		Log.warning("instances\tperInstance.ms\tleaf.ms\tspeedup\tlogP\tdifference");
+		Random random = new Random(seedInput.get());
+		double[] p = flexibleInput.get() ? sampleSimplex(this.ncomponents, random) : null;
+		for (int ninstances : this.instances) {
+
+			// Generate a leaf. Each alpha sums to tau, in the same way as DecisionNode normalises its response
+			double[][] X = new double[ninstances][];
+			double[][] alpha = new double[ninstances][];
+			for (int i = 0; i < ninstances; i ++) {
+				X[i] = sampleSimplex(this.ncomponents, random);
+				alpha[i] = sampleSimplex(this.ncomponents, random);
+				for (int j = 0; j < this.ncomponents; j ++) alpha[i][j] *= this.tau;
+			}
+
+
+			long perInstanceTime = Long.MAX_VALUE, leafTime = Long.MAX_VALUE;
+			double perInstanceLogP = 0, leafLogP = 0;
+			for (int rep = 0; rep < this.nreplicates; rep ++) {
+
+				// Original
+				long start = System.nanoTime();
+				perInstanceLogP = 0;
+				for (int i = 0; i < ninstances; i ++) perInstanceLogP += FlexibleDirichlet.calcLogP(X[i], alpha[i], p, this.tau);
+				perInstanceTime = Math.min(perInstanceTime, System.nanoTime() - start);
+
+				// Whole leaf
+				start = System.nanoTime();
+				leafLogP = FlexibleDirichlet.calcLogP(X, alpha, p, this.tau, this.tau);
+				leafTime = Math.min(leafTime, System.nanoTime() - start);
+
+			}
+
+
+			// Allow for rounding error
+			double difference = Math.abs(perInstanceLogP - leafLogP);
+			Log.warning(ninstances + "\t" + perInstanceTime / 1e6 + "\t" + leafTime / 1e6 + "\t" + 1.0 * perInstanceTime / leafTime + "\t" + leafLogP + "\t" + difference);
+			if (difference > 1e-8 * Math.max(1, Math.abs(perInstanceLogP))) {
+				throw new Exception("The log probabilities differ for " + ninstances + " instances: " + perInstanceLogP + " != " + leafLogP);
+			}
+
+		}
+
+	}
+
+
+	/**
+	 * A uniform random point on the simplex
+	 * @param dim
+	 * @param random
+	 * @return
+	 */
+	private static double[] sampleSimplex(int dim, Random random) {
+		double[] x = new double[dim];
+		double sum = 0;
+		for (int i = 0; i < dim; i ++) {
+			x[i] = -Math.log(1 - random.nextDouble());
+			sum += x[i];
+		}
+		for (int i = 0; i < dim; i ++) x[i] /= sum;
+		return x;
+	}
+
+
+	public static void main(String[] args) throws Exception {
+		new Application(new FlexibleDirichletBenchmark(), "Benchmark the flexible dirichlet leaf likelihood", args);
+	}
+
+
+}
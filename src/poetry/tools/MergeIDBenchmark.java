@@ -0,0 +1,253 @@
+package poetry.tools;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.w3c.dom.Attr;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NamedNodeMap;
+import org.w3c.dom.Node;
+
+import beast.app.util.Application;
+import beast.core.Description;
+import beast.core.Input;
+import beast.core.Runnable;
+import beast.core.util.Log;
+import poetry.util.XMLUtils;
+
+
+@Description("Benchmarks XMLUtils.mergeElementsWhichShareID against the original pairwise comparison on generated multi-partition xmls, "
+		+ "and checks that both produce identical xmls")
+public class MergeIDBenchmark extends Runnable {
+
+
+	final public Input<String> partitionsInput = new Input<>("partitions", "Comma-separated numbers of partitions to benchmark (default 1,4,16,64)", "1,4,16,64");
+	final public Input<Integer> taxaInput = new Input<>("taxa", "Number of taxa in each generated xml (default 50)", 50);
+	final public Input<Integer> replicatesInput = new Input<>("replicates", "Number of times to time each xml (default 3)", 3);
+	final public Input<Long> seedInput = new Input<>("seed", "Random seed for generating the xmls (default 1)", 1L);
+
+
+	List<Integer> partitions;
+	int ntaxa;
+	int nreplicates;
+
+
+	@Override
+	public void initAndValidate() {
+		this.partitions = new ArrayList<>();
+		for (String p : partitionsInput.get().split(",")) {
+			this.partitions.add(Integer.parseInt(p.trim()));
+		}
+		this.ntaxa = taxaInput.get();
+		this.nreplicates = replicatesInput.get();
+		if (this.ntaxa <= 0) throw new IllegalArgumentException("Please ensure that taxa > 0");
+		if (this.nreplicates <= 0) throw new IllegalArgumentException("Please ensure that replicates > 0");
+	}
+
+
+	@Override
+	public void run() throws Exception {
+
+
+		Log.warning("partitions\telements\tpairwise.ms\tlinear.ms\tidentical");
+		Random random = new Random(seedInput.get());
+		for (int npartitions : this.partitions) {
+
+			String xml = generateXML(npartitions, this.ntaxa, random);
+
+			long pairwiseTime = Long.MAX_VALUE, linearTime = Long.MAX_VALUE;
+			String pairwiseXML = null, linearXML = null;
+			int nelements = 0;
+			for (int rep = 0; rep < this.nreplicates; rep ++) {
+
+				// Original
+				Document doc = XMLUtils.loadXMLFromString(xml);
+				nelements = XMLUtils.getAllElements(doc).size();
+				long start = System.nanoTime();
+				mergeElementsWhichShareIDPairwise(doc);
+				pairwiseTime = Math.min(pairwiseTime, System.nanoTime() - start);
+				pairwiseXML = XMLUtils.getXMLStringFromDocument(doc);
+
+				// Linear
+				doc = XMLUtils.loadXMLFromString(xml);
+				start = System.nanoTime();
+				XMLUtils.mergeElementsWhichShareID(doc);
+				linearTime = Math.min(linearTime, System.nanoTime() - start);
+				linearXML = XMLUtils.getXMLStringFromDocument(doc);
+
+			}
+
+			boolean identical = pairwiseXML.equals(linearXML);
+			Log.warning(npartitions + "\t" + nelements + "\t" + pairwiseTime / 1e6 + "\t" + linearTime / 1e6 + "\t" + identical);
+			if (!identical) throw new Exception("The merged xmls differ for " + npartitions + " partitions");
+
+		}
+
+	}
+
+
+
+	/**
+	 * Generate an xml in which each partition repeats the tree, clock and substitution model elements,
+	 * in the same way that DatasetSampler repeats the $(partition) elements of a template
+	 * Some partitions use a different substitution model under the same id, so that duplicates nested
+	 * inside other duplicates are also merged
+	 * @param npartitions
+	 * @param ntaxa
+	 * @param random
+	 * @return
+	 * @throws Exception
+	 */
+	public static String generateXML(int npartitions, int ntaxa, Random random) throws Exception {
+
+		Document doc = XMLUtils.loadXMLFromString("<beast/>");
+		Element beast = doc.getDocumentElement();
+
+		Element run = doc.createElement("run");
+		run.setAttribute("id", "mcmc");
+		run.setAttribute("spec", "MCMC");
+		beast.appendChild(run);
+
+		Element posterior = doc.createElement("distribution");
+		posterior.setAttribute("id", "posterior");
+		posterior.setAttribute("spec", "CompoundDistribution");
+		run.appendChild(posterior);
+
+		Element likelihood = doc.createElement("distribution");
+		likelihood.setAttribute("id", "likelihood");
+		likelihood.setAttribute("spec", "CompoundDistribution");
+		posterior.appendChild(likelihood);
+
+
+		for (int p = 1; p <= npartitions; p ++) {
+
+			Element treeLikelihood = doc.createElement("distribution");
+			treeLikelihood.setAttribute("id", "treeLikelihood.p" + p);
+			treeLikelihood.setAttribute("spec", "TreeLikelihood");
+			treeLikelihood.setAttribute("data", "@p" + p);
+			likelihood.appendChild(treeLikelihood);
+
+
+			// Tree and taxa (shared by all partitions)
+			Element tree = doc.createElement("tree");
+			tree.setAttribute("id", "Tree");
+			tree.setAttribute("spec", "beast.evolution.tree.Tree");
+			treeLikelihood.appendChild(tree);
+			Element taxonset = doc.createElement("taxonset");
+			taxonset.setAttribute("id", "TaxonSet");
+			taxonset.setAttribute("spec", "TaxonSet");
+			tree.appendChild(taxonset);
+			for (int t = 1; t <= ntaxa; t ++) {
+				Element taxon = doc.createElement("taxon");
+				taxon.setAttribute("id", "taxon" + t);
+				taxon.setAttribute("spec", "Taxon");
+				taxonset.appendChild(taxon);
+			}
+
+
+			// Site model (one per partition) with a shared substitution model
+			Element siteModel = doc.createElement("siteModel");
+			siteModel.setAttribute("id", "SiteModel.p" + p);
+			siteModel.setAttribute("spec", "SiteModel");
+			siteModel.setAttribute("gammaCategoryCount", "4");
+			treeLikelihood.appendChild(siteModel);
+			Element substModel = doc.createElement("substModel");
+			substModel.setAttribute("id", "hky");
+			substModel.setAttribute("spec", random.nextBoolean() ? "HKY" : "GTR");
+			siteModel.appendChild(substModel);
+			Element kappa = doc.createElement("parameter");
+			kappa.setAttribute("id", random.nextBoolean() ? "kappa" : "rates");
+			kappa.setAttribute("name", "kappa");
+			kappa.setAttribute("lower", "0");
+			kappa.appendChild(doc.createTextNode("2.0"));
+			substModel.appendChild(kappa);
+			Element freqs = doc.createElement("frequencies");
+			freqs.setAttribute("id", "freqs");
+			freqs.setAttribute("spec", "Frequencies");
+			freqs.setAttribute("data", "@p" + p);
+			substModel.appendChild(freqs);
+
+
+			// Clock (shared)
+			Element clock = doc.createElement("branchRateModel");
+			clock.setAttribute("id", "StrictClock");
+			clock.setAttribute("spec", "StrictClockModel");
+			clock.setAttribute("clock.rate", "@clockRate");
+			treeLikelihood.appendChild(clock);
+
+		}
+
+
+		// Logger which refers to the tree again
+		Element logger = doc.createElement("logger");
+		logger.setAttribute("id", "treelog");
+		logger.setAttribute("fileName", "out.trees");
+		run.appendChild(logger);
+		Element log = doc.createElement("log");
+		log.setAttribute("id", "Tree");
+		log.setAttribute("spec", "beast.evolution.tree.Tree");
+		logger.appendChild(log);
+
+		return XMLUtils.getXMLStringFromDocument(doc);
+
+	}
+
+
+
+	/**
+	 * The original pairwise comparison of mergeElementsWhichShareID, kept as a reference
+	 * @param doc
+	 */
+	public static void mergeElementsWhichShareIDPairwise(Document doc) {
+
+		List<Node> elements = XMLUtils.getAllElements(doc);
+		for (int i = 0; i < elements.size(); i ++) {
+			Node node_i = elements.get(i);
+			if (node_i.getParentNode() == null) continue;
+			if (node_i.getNodeType() != Node.ELEMENT_NODE) continue;
+
+			Element ele_i = (Element) node_i;
+			if (!ele_i.hasAttribute("id")) continue;
+			String id_i = ele_i.getAttribute("id");
+
+			for (int j = i+1; j < elements.size(); j ++) {
+
+				Node node_j = elements.get(j);
+				if (node_j.getParentNode() == null) continue;
+				if (node_j.getNodeType() != Node.ELEMENT_NODE) continue;
+
+				Element ele_j = (Element) node_j;
+				if (!ele_j.hasAttribute("id")) continue;
+				String id_j = ele_j.getAttribute("id");
+				if (!id_i.equals(id_j)) continue;
+
+				// Remove all other attributes
+				NamedNodeMap attributes = ele_j.getAttributes();
+				for (int k = 0; k < attributes.getLength(); k ++) {
+					Attr attr = (Attr) attributes.item(k);
+					String attrName = attr.getNodeName();
+					if (!attrName.equals("name")) ele_j.removeAttribute(attrName);
+				}
+
+				// Remove all children
+				for (Node child : XMLUtils.nodeListToList(ele_j.getChildNodes())){
+					ele_j.removeChild(child);
+				}
+
+				ele_j.removeAttribute("id");
+				ele_j.setAttribute("idref", id_i);
+
+			}
+		}
+
+	}
+
+
+	public static void main(String[] args) throws Exception {
+		new Application(new MergeIDBenchmark(), "Benchmark the merging of elements which share an id", args);
+	}
+
+
+}
@@ -0,0 +1,201 @@
+package poetry.tools;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+import beast.app.util.Application;
+import beast.core.Description;
+import beast.core.Input;
+import beast.core.Logger;
+import beast.core.Runnable;
+import beast.core.Input.Validate;
+import beast.core.util.Log;
+import beast.util.XMLParser;
+import poetry.util.ReplicateContext;
+import poetry.util.XMLUtils;
+
+
+@Description("Runs the replicates of a SimulateXML output folder concurrently inside a single JVM. "
+		+ "Each replicate runs in its own replicateX folder, with its loggers (including screen loggers) writing into that folder. "
+		+ "Messages printed through Log, and the overwrite/resume mode of the loggers, are shared by all replicates")
+public class ReplicateRunner extends Runnable {
+
+
+	final public Input<File> outInput = new Input<>("out", "The output folder of SimulateXML (containing database.tsv and the xml folders)", Validate.REQUIRED);
+	final public Input<Integer> threadsInput = new Input<>("threads", "The maximum number of replicates to run at once (default: number of processors)",
+			java.lang.Runtime.getRuntime().availableProcessors());
+	final public Input<String> xmlNameInput = new Input<>("xml", "The name of the xml file inside each xml folder (default out.xml)", "out.xml");
+	final public Input<Boolean> overwriteInput = new Input<>("overwrite", "Whether to overwrite existing log files (default false)", false);
+	final public Input<Boolean> resumeInput = new Input<>("resume", "Whether to resume from existing log and state files (default false)", false);
+
+
+
+	// Coupled MCMC relies on static state which must not be shared between replicates
+	private static final Object staticLock = new Object();
+
+	File outFolder;
+	int nthreads;
+	String xmlName;
+
+
+	@Override
+	public void initAndValidate() {
+
+		this.outFolder = outInput.get();
+		this.nthreads = threadsInput.get();
+		this.xmlName = xmlNameInput.get();
+		if (!this.outFolder.isDirectory()) throw new IllegalArgumentException("Cannot locate folder " + this.outFolder.getPath());
+		if (this.nthreads <= 0) throw new IllegalArgumentException("Please ensure that threads > 0");
+		if (overwriteInput.get() && resumeInput.get()) throw new IllegalArgumentException("Please choose either overwrite or resume but not both");
+
+	}
+
+	@Override
+	public void run() throws Exception {
+
+
+		if (overwriteInput.get()) Logger.FILE_MODE = Logger.LogFileMode.overwrite;
+		if (resumeInput.get()) Logger.FILE_MODE = Logger.LogFileMode.resume;
+
+
+		// Find all replicate folders, in xml order
+		List<File> replicates = new ArrayList<>();
+		File[] xmlFolders = this.outFolder.listFiles(f -> f.isDirectory() && f.getName().startsWith("xml"));
+		Arrays.sort(xmlFolders);
+		for (File xmlFolder : xmlFolders) {
+			if (!new File(xmlFolder, this.xmlName).exists()) continue;
+			File[] repFolders = xmlFolder.listFiles(f -> f.isDirectory() && f.getName().startsWith("replicate"));
+			Arrays.sort(repFolders);
+			for (File rep : repFolders) replicates.add(rep);
+		}
+		Log.warning("Running " + replicates.size() + " replicates on " + this.nthreads + " threads");
+
+
+		// Bounded thread pool. One replicate per task
+		ExecutorService pool = Executors.newFixedThreadPool(this.nthreads);
+		List<Future<?>> futures = new ArrayList<>();
+		for (File rep : replicates) {
+			futures.add(pool.submit(() -> {
+				try {
+					runReplicate(rep);
+				} catch (Exception e) {
+					e.printStackTrace();
+					Log.warning("Replicate " + rep.getPath() + " failed: " + e.getMessage());
+				}
+			}));
+		}
+		pool.shutdown();
+		for (Future<?> future : futures) future.get();
+
+		Log.warning("Done!");
+
+	}
+
+
+
+	/**
+	 * Parse and run the xml file of this replicate folder on the current thread
+	 * @param replicateFolder
+	 * @throws Exception
+	 */
+	protected void runReplicate(File replicateFolder) throws Exception {
+
+		File xmlFile = new File(replicateFolder.getParentFile(), this.xmlName);
+		Log.warning("Starting " + replicateFolder.getPath());
+
+
+		ReplicateContext.setWorkingDirectory(replicateFolder);
+		try {
+
+			Document doc = XMLUtils.loadXMLFromFile(xmlFile.getAbsolutePath());
+			boolean isMC3 = isolateReplicate(doc, replicateFolder);
+
+			// Replace the filebase variable with the path of this replicate
+			String filebase = new File(replicateFolder, this.xmlName.replaceAll("[.]xml$", "")).getAbsolutePath();
+			String xml = XMLUtils.getXMLStringFromDocument(doc).replace("$(filebase)", filebase);
+
+
+			Runnable runnable = new XMLParser().parseFromString(xml);
+			runnable.setStateFile(filebase + ".xml.state", Logger.FILE_MODE == Logger.LogFileMode.resume);
+
+			// Coupled MCMC chains share static weights and runtimes, so these replicates are run one at a time
+			if (isMC3) {
+				synchronized (staticLock) {
+					runnable.run();
+				}
+			}else {
+				runnable.run();
+			}
+
+		}finally {
+			ReplicateContext.setWorkingDirectory(null);
+		}
+
+		Log.warning("Finished " + replicateFolder.getPath());
+
+	}
+
+
+	/**
+	 * Make the loggers of this document write into the replicate folder,
+	 * and turn off static weights/runtimes unless the runnable is a coupled MCMC.
+	 * Screen loggers would interleave with the other replicates on stdout, so they log to a file named after their id
+	 * @param doc
+	 * @param replicateFolder
+	 * @return whether this is a coupled MCMC
+	 */
+	protected static boolean isolateReplicate(Document doc, File replicateFolder) {
+
+		boolean isMC3 = false;
+		for (Node node : XMLUtils.getAllElements(doc)) {
+			Element ele = (Element) node;
+			if (ele.hasAttribute("spec") && ele.getAttribute("spec").contains("CoupledMCMC")) {
+				isMC3 = true;
+			}
+		}
+
+		int nscreen = 0;
+		for (Node node : XMLUtils.getAllElements(doc)) {
+			Element ele = (Element) node;
+
+			// Screen logs
+			if (ele.getTagName().equals("logger") && ele.getAttribute("fileName").isEmpty()) {
+				String name = ele.getAttribute("id").isEmpty() ? "screen" + (++nscreen) : ele.getAttribute("id");
+				ele.setAttribute("fileName", new File(replicateFolder, name + ".log").getAbsolutePath());
+			}
+
+			// Log files
+			if (ele.hasAttribute("fileName")) {
+				String fileName = ele.getAttribute("fileName");
+				if (!fileName.isEmpty() && !fileName.startsWith("$(") && !new File(fileName).isAbsolute()) {
+					ele.setAttribute("fileName", new File(replicateFolder, fileName).getAbsolutePath());
+				}
+			}
+
+			// Static state is not shared between replicates
+			if (!isMC3 && ele.hasAttribute("static")) {
+				ele.setAttribute("static", "false");
+			}
+
+		}
+
+		return isMC3;
+
+	}
+
+
+	public static void main(String[] args) throws Exception {
+		new Application(new ReplicateRunner(), "Run the replicates of a SimulateXML output folder in one JVM", args);
+	}
+
+
+}
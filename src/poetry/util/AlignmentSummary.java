@@ -0,0 +1,219 @@
+package poetry.util;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import beast.evolution.alignment.Alignment;
+import beast.evolution.datatype.DataType;
+import beast.util.ClusterTree;
+
+
+/**
+ * The numeric features of an alignment (ntaxa, nsites, npatterns, gaps and nchar), computed together in a single pass over its patterns
+ * Summaries are cached per Alignment instance, and are recomputed if the alignment's patterns are rebuilt
+ * The neighbour joining tree height is only computed the first time it is requested
+ * @author jdou557
+ *
+ */
+public class AlignmentSummary {
+
+
+	private static final Map<Alignment, AlignmentSummary> cache = new WeakHashMap<>();
+
+
+	final int ntaxa;
+	final int nsites;
+	final int npatterns;
+	final long ngaps;
+	final long nchars;
+	final int nstates;
+
+	// The first pattern of the alignment when it was summarised. Alignments build new pattern arrays whenever they are (re)initialised
+	final int[] stamp;
+
+	// Neighbour joining tree height. Computed on demand
+	private Double height;
+
+
+
+	/**
+	 * Get the summary of this alignment, computing it only if it is not already cached
+	 * @param aln
+	 * @return
+	 */
+	public static AlignmentSummary get(Alignment aln) {
+		synchronized (cache) {
+			AlignmentSummary summary = cache.get(aln);
+			if (summary != null && summary.isCurrent(aln)) return summary;
+			summary = new AlignmentSummary(aln);
+			cache.put(aln, summary);
+			return summary;
+		}
+	}
+
+
+
+	private AlignmentSummary(Alignment aln) {
+
+		this.ntaxa = aln.getTaxonCount();
+		this.nsites = aln.getSiteCount();
+		this.npatterns = aln.getPatternCount();
+		this.nstates = aln.getDataType().getStateCount();
+		this.stamp = this.npatterns > 0 ? aln.getPattern(0) : null;
+
+
+		// Count the gaps of each pattern and multiply by its weight. Gaps are counted in the same way as the
+		// characters of getSequenceAsString, so the encoding of each state is only looked up once
+		DataType datatype = aln.getDataType();
+		HashMap<Integer, int[]> encodings = new HashMap<>();
+		long ngaps = 0;
+		long nchars = 0;
+		for (int p = 0; p < this.npatterns; p ++) {
+			int[] pattern = aln.getPattern(p);
+			int weight = aln.getPatternWeight(p);
+			if (weight == 0) continue;
+			int patternGaps = 0;
+			int patternChars = 0;
+			for (int state : pattern) {
+				int[] encoding = encodings.get(state);
+				if (encoding == null) {
+					String str = datatype.encodingToString(new int[] { state });
+					encoding = new int[] { str.length() - str.replace("-", "").length(), str.length() };
+					encodings.put(state, encoding);
+				}
+				patternGaps += encoding[0];
+				patternChars += encoding[1];
+			}
+			ngaps += (long) patternGaps * weight;
+			nchars += (long) patternChars * weight;
+		}
+		this.ngaps = ngaps;
+		this.nchars = nchars;
+
+	}
+
+
+	private boolean isCurrent(Alignment aln) {
+		if (aln.getPatternCount() != this.npatterns || aln.getSiteCount() != this.nsites || aln.getTaxonCount() != this.ntaxa) return false;
+		return this.npatterns == 0 || aln.getPattern(0) == this.stamp;
+	}
+
+
+
+	public int getNtaxa() {
+		return this.ntaxa;
+	}
+
+	public int getNsites() {
+		return this.nsites;
+	}
+
+	public int getNpatterns() {
+		return this.npatterns;
+	}
+
+	/**
+	 * Number of gap characters across all sequences
+	 * @return
+	 */
+	public long getNgaps() {
+		return this.ngaps;
+	}
+
+	/**
+	 * Number of characters across all sequences
+	 * @return
+	 */
+	public long getNchars() {
+		return this.nchars;
+	}
+
+	/**
+	 * Number of states in the data type
+	 * @return
+	 */
+	public int getNstates() {
+		return this.nstates;
+	}
+
+
+	/**
+	 * Height of the neighbour joining tree, built the first time it is requested
+	 * @param aln - the alignment which was summarised
+	 * @return
+	 */
+	public synchronized double getTreeHeight(Alignment aln) {
+		if (this.height == null) {
+
+			// Set estimate to false so that the tree is still calculated even in -resume mode
+			ClusterTree tree = new ClusterTree();
+			tree.initByName("clusterType", "neighborjoining", "taxa", aln, "estimate", false);
+			aln.getOutputs().remove(tree);
+			this.height = tree.getRoot().getHeight();
+		}
+		return this.height;
+	}
+
+
+
+	/**
+	 * Proportion of gaps across all partitions
+	 * @param partitions
+	 * @return
+	 */
+	public static double getPgaps(List<Alignment> partitions) {
+		long ngaps = 0;
+		long nchars = 0;
+		for (Alignment aln : partitions) {
+			AlignmentSummary summary = get(aln);
+			ngaps += summary.ngaps;
+			nchars += summary.nchars;
+		}
+		return 1.0 * ngaps / nchars;
+	}
+
+
+	/**
+	 * Neighbour joining tree height, averaged across partitions weighted by their number of sites
+	 * @param partitions
+	 * @return
+	 */
+	public static double getTreeHeight(List<Alignment> partitions) {
+		double weightedMeanHeight = 0;
+		int nsitesTotal = 0;
+		for (Alignment aln : partitions) {
+			AlignmentSummary summary = get(aln);
+			weightedMeanHeight += summary.getTreeHeight(aln) * summary.nsites;
+			nsitesTotal += summary.nsites;
+		}
+		return weightedMeanHeight / nsitesTotal;
+	}
+
+
+	/**
+	 * Total number of sites across partitions
+	 * @param partitions
+	 * @return
+	 */
+	public static int getNsites(List<Alignment> partitions) {
+		int nsites = 0;
+		for (Alignment aln : partitions) nsites += get(aln).nsites;
+		return nsites;
+	}
+
+
+	/**
+	 * Total number of patterns across partitions
+	 * @param partitions
+	 * @return
+	 */
+	public static int getNpatterns(List<Alignment> partitions) {
+		int npatterns = 0;
+		for (Alignment aln : partitions) npatterns += get(aln).npatterns;
+		return npatterns;
+	}
+
+
+}
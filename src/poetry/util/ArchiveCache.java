@@ -0,0 +1,375 @@
+package poetry.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.compress.utils.IOUtils;
+
+import beast.core.util.Log;
+
+
+/**
+ * A persistent on-disk cache of extracted archives, shared by all WeightedFiles (and all processes on this machine)
+ * Each archive is extracted once into a folder named after the hash of its contents, so an archive which is sampled many times
+ * is only decompressed on the first draw. The least recently used folders are deleted once the cache exceeds its size budget, 
+ * but only if they have not been used by any thread or process for a grace period
+ * File formats are detected from their magic bytes rather than their extension or the OS content type
+ * @author jdou557
+ *
+ */
+public class ArchiveCache {
+
+
+	public enum Format {
+		gzip, tar, zip, xml, text
+	}
+
+
+	// Marks a cache folder which holds a single gunzipped file
+	private static final String GUNZIP_MARKER = ".gunzip";
+
+	private static File cacheDir = new File(System.getProperty("java.io.tmpdir"), "poetry-archives");
+	private static long budget = 4096L * 1024 * 1024;
+	private static long gracePeriod = 60L * 60 * 1000;
+
+	// Archive hashes, so that each archive is only hashed once per JVM. Keyed by path, length and modification time
+	private static final ConcurrentHashMap<String, String> hashes = new ConcurrentHashMap<>();
+
+
+
+	/**
+	 * Set the folder which extracted archives are stored in (default: poetry-archives in the tmp directory)
+	 * @param dir
+	 */
+	public static synchronized void setDirectory(File dir) {
+		cacheDir = dir;
+	}
+
+
+	/**
+	 * Set the disk budget of the cache
+	 * @param megabytes
+	 */
+	public static synchronized void setBudget(long megabytes) {
+		budget = megabytes * 1024 * 1024;
+	}
+
+
+	/**
+	 * Set how long an extraction must go unused before it can be deleted (default 60 minutes)
+	 * @param minutes
+	 */
+	public static synchronized void setGracePeriod(long minutes) {
+		gracePeriod = minutes * 60 * 1000;
+	}
+
+
+
+	/**
+	 * Detect the format of a file from its first bytes
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	public static Format detect(File file) throws IOException {
+		byte[] header = new byte[512];
+		int len;
+		try (InputStream in = new FileInputStream(file)) {
+			len = IOUtils.readFully(in, header);
+		}
+		Format format = detect(header, len);
+		if (format == Format.text && file.getName().endsWith(".tar")) return Format.tar;
+		return format;
+	}
+
+
+	/**
+	 * Detect the format of a file from its first (up to 512) bytes
+	 * @param header
+	 * @param len - number of bytes in the header
+	 * @return
+	 */
+	public static Format detect(byte[] header, int len) {
+
+		if (len >= 2 && (header[0] & 0xff) == 0x1f && (header[1] & 0xff) == 0x8b) return Format.gzip;
+		if (len >= 4 && header[0] == 'P' && header[1] == 'K' && header[2] == 3 && header[3] == 4) return Format.zip;
+		if (len >= 262 && header[257] == 'u' && header[258] == 's' && header[259] == 't' && header[260] == 'a' && header[261] == 'r') return Format.tar;
+
+		// Skip any byte order mark and whitespace
+		int i = 0;
+		if (len >= 3 && (header[0] & 0xff) == 0xef && (header[1] & 0xff) == 0xbb && (header[2] & 0xff) == 0xbf) i = 3;
+		while (i < len && Character.isWhitespace(header[i])) i++;
+		if (i < len && header[i] == '<') return Format.xml;
+		return Format.text;
+
+	}
+
+
+	/**
+	 * Is this format an archive?
+	 * @param format
+	 * @return
+	 */
+	public static boolean isArchive(Format format) {
+		return format == Format.gzip || format == Format.tar || format == Format.zip;
+	}
+
+
+
+	/**
+	 * Extract an archive into the cache, or return the existing extraction
+	 * A gzipped tarball is untarred directly. A gzipped file is decompressed into a file of the same name (without .gz)
+	 * @param archive
+	 * @return the extracted folder, or the decompressed file of a gzip
+	 * @throws IOException
+	 */
+	public static File extract(File archive) throws IOException {
+
+
+		String hash = getHash(archive);
+		File dir;
+		synchronized (ArchiveCache.class) {
+			dir = new File(cacheDir, hash);
+		}
+
+
+		while (true) {
+
+			// Extract, unless it has already been extracted
+			if (!dir.exists()) {
+
+				if (!dir.getParentFile().exists()) dir.getParentFile().mkdirs();
+
+				// Extract into a private folder and then move it into place, so that other threads/processes never see a partial extraction
+				File tmp = new File(dir.getParentFile(), hash + ".tmp" + Thread.currentThread().getId() + "_" + System.nanoTime());
+				if (!tmp.mkdir()) throw new IOException("Cannot create folder " + tmp.getPath());
+				try {
+					extractTo(archive, tmp);
+				}catch (IOException e) {
+					WeightedFile.deleteDirectory(tmp);
+					throw e;
+				}
+				if (!tmp.renameTo(dir)) {
+					WeightedFile.deleteDirectory(tmp);
+					if (!dir.exists()) throw new IOException("Cannot create folder " + dir.getPath());
+				}
+				Log.warning("Extracted " + archive.getPath() + " into " + dir.getPath());
+
+				evict(dir);
+
+			}
+
+			// Touch it so that it is the most recently used, and therefore will not be evicted (see evict)
+			// If it cannot be touched, then it was evicted in the meantime, so extract it again
+			if (dir.setLastModified(System.currentTimeMillis()) || dir.exists()) break;
+
+		}
+
+
+		// A gzipped file contains a single file, which is flagged by a marker
+		if (new File(dir, GUNZIP_MARKER).exists()) {
+			File[] contents = dir.listFiles(f -> !f.getName().equals(GUNZIP_MARKER));
+			if (contents != null && contents.length == 1) return contents[0];
+		}
+		return dir;
+
+	}
+
+
+
+	/**
+	 * Extract the archive into this folder
+	 * @param archive
+	 * @param outDir
+	 * @throws IOException
+	 */
+	private static void extractTo(File archive, File outDir) throws IOException {
+
+		Format format = detect(archive);
+		try (InputStream in = new BufferedInputStream(new FileInputStream(archive))) {
+			switch (format) {
+
+				case gzip: {
+
+					// Peek at the decompressed header to see if it is a tarball
+					InputStream gz = new BufferedInputStream(new GZIPInputStream(in));
+					byte[] header = new byte[512];
+					gz.mark(header.length);
+					int len = IOUtils.readFully(gz, header);
+					gz.reset();
+					if (detect(header, len) == Format.tar) {
+						untar(new TarArchiveInputStream(gz), outDir);
+					}else {
+						String name = archive.getName().replaceAll("[.]gz$", "");
+						if (name.isEmpty() || name.equals(GUNZIP_MARKER)) name = "gunzipped";
+						copy(gz, new File(outDir, name));
+						new File(outDir, GUNZIP_MARKER).createNewFile();
+					}
+					break;
+				}
+
+				case tar: {
+					untar(new TarArchiveInputStream(in), outDir);
+					break;
+				}
+
+				case zip: {
+					ZipInputStream zip = new ZipInputStream(in);
+					ZipEntry entry;
+					while ((entry = zip.getNextEntry()) != null) {
+						File outFile = resolveEntry(outDir, entry.getName());
+						if (entry.isDirectory()) outFile.mkdirs();
+						else copy(zip, outFile);
+					}
+					break;
+				}
+
+				default: {
+					throw new IOException(archive.getPath() + " is not a .tar, .gz or .zip archive");
+				}
+
+			}
+		}
+
+	}
+
+
+	private static void untar(TarArchiveInputStream tar, File outDir) throws IOException {
+		TarArchiveEntry entry;
+		while ((entry = tar.getNextTarEntry()) != null) {
+			File outFile = resolveEntry(outDir, entry.getName());
+			if (entry.isDirectory()) outFile.mkdirs();
+			else copy(tar, outFile);
+		}
+	}
+
+
+	/**
+	 * The file of this archive entry, which must be inside the output folder
+	 */
+	private static File resolveEntry(File outDir, String name) throws IOException {
+		File outFile = new File(outDir, name);
+		if (!outFile.getCanonicalPath().startsWith(outDir.getCanonicalPath() + File.separator)) {
+			throw new IOException("Archive entry " + name + " is outside of the target folder");
+		}
+		return outFile;
+	}
+
+
+	private static void copy(InputStream in, File outFile) throws IOException {
+		if (outFile.getParentFile() != null) outFile.getParentFile().mkdirs();
+		try (OutputStream out = new BufferedOutputStream(new FileOutputStream(outFile))) {
+			IOUtils.copy(in, out);
+		}
+	}
+
+
+
+	/**
+	 * SHA-1 hash of the archive's contents. Each archive is only read once per JVM unless it changes
+	 * @param archive
+	 * @return
+	 * @throws IOException
+	 */
+	public static String getHash(File archive) throws IOException {
+
+		String key = archive.getAbsolutePath() + "\t" + archive.length() + "\t" + archive.lastModified();
+		String hash = hashes.get(key);
+		if (hash != null) return hash;
+
+		try (InputStream in = new FileInputStream(archive)) {
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			byte[] buffer = new byte[65536];
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				digest.update(buffer, 0, read);
+			}
+			StringBuilder str = new StringBuilder();
+			for (byte b : digest.digest()) str.append(String.format("%02x", b));
+			hash = str.toString();
+		} catch (java.security.NoSuchAlgorithmException e) {
+			throw new IOException(e);
+		}
+
+		hashes.put(key, hash);
+		return hash;
+
+	}
+
+
+
+	/**
+	 * Delete the least recently used extractions until the cache is within budget. The newest extraction is never deleted,
+	 * and nor is any extraction which has been used (see extract) by any thread or process within the grace period
+	 * @param keep
+	 */
+	private static synchronized void evict(File keep) {
+
+		File[] entries = cacheDir.listFiles(f -> f.isDirectory() && !f.getName().contains(".tmp"));
+		if (entries == null) return;
+
+		long[] sizes = new long[entries.length];
+		long total = 0;
+		for (int i = 0; i < entries.length; i ++) {
+			sizes[i] = getSize(entries[i]);
+			total += sizes[i];
+		}
+		if (total <= budget) return;
+
+
+		// Oldest first
+		Integer[] order = new Integer[entries.length];
+		for (int i = 0; i < order.length; i ++) order[i] = i;
+		final long[] modified = new long[entries.length];
+		for (int i = 0; i < entries.length; i ++) modified[i] = entries[i].lastModified();
+		Arrays.sort(order, Comparator.comparingLong(i -> modified[i]));
+
+		long now = System.currentTimeMillis();
+		for (int i : order) {
+			if (total <= budget) break;
+			if (entries[i].equals(keep)) continue;
+			if (now - modified[i] < gracePeriod) break;
+
+			// Move it out of the way first, so that any extract which has not touched it yet will extract it again.
+			// If it was touched before the move, then it is in use, so put it back
+			File evicted = new File(cacheDir, entries[i].getName() + ".tmp.evict" + System.nanoTime());
+			if (!entries[i].renameTo(evicted)) continue;
+			if (System.currentTimeMillis() - evicted.lastModified() < gracePeriod) {
+				if (!evicted.renameTo(entries[i])) WeightedFile.deleteDirectory(evicted);
+				continue;
+			}
+			Log.warning("Removing " + entries[i].getPath() + " from the archive cache");
+			WeightedFile.deleteDirectory(evicted);
+			total -= sizes[i];
+		}
+
+	}
+
+
+	private static long getSize(File file) {
+		if (!file.isDirectory()) return file.length();
+		long size = 0;
+		File[] contents = file.listFiles();
+		if (contents != null) {
+			for (File f : contents) size += getSize(f);
+		}
+		return size;
+	}
+
+
+}
@@ -33,7 +33,6 @@ import beast.evolution.tree.coalescent.Coalescent;
 import beast.evolution.tree.coalescent.ConstantPopulation;
 import beast.evolution.tree.coalescent.ExponentialGrowth;
 import beast.math.distributions.MRCAPrior;
-import beast.util.ClusterTree;
 import poetry.learning.DimensionalSampler;
 import poetry.learning.ModelValue;
 import poetry.learning.WeightSampler;
@@ -114,15 +113,37 @@ public class BEAST2Weka {
 		List<Alignment> partitions = new ArrayList<>();
 		partitions.add(dataset);
 		
+		
+		// Look up the dataset features in any loaded catalogue, or else summarise the alignment in a single pass
+		int ntaxa, nsites, npatterns, nchar;
+		double pgaps, treeHeight;
+		DatasetCatalogue.Entry entry = DatasetCatalogue.lookup(dataset);
+		if (entry != null) {
+			Log.warning("Found the dataset in the catalogue as " + entry.getFilePath() + " " + entry.getPartitionID());
+			ntaxa = entry.getNtaxa();
+			nsites = entry.getNsites();
+			npatterns = entry.getNpatterns();
+			pgaps = entry.getPgaps();
+			treeHeight = entry.getHeight();
+			nchar = entry.getNchar();
+		}else {
+			ntaxa = getNtaxa(partitions);
+			nsites = getNsites(partitions);
+			npatterns = getNpatterns(partitions);
+			pgaps = getPgaps(partitions);
+			treeHeight = getTreeHeight(partitions);
+			nchar = getNchar(partitions);
+		}
+		
 				
 		// 1 Ntaxa
-		instance.setValue(instances.attribute(getNtaxaAttr().name()), Math.log(getNtaxa(partitions)));
+		instance.setValue(instances.attribute(getNtaxaAttr().name()), Math.log(ntaxa));
 		
 		// 2 Nsites
-		instance.setValue(instances.attribute(getNsitesAttr().name()), Math.log(getNsites(partitions)));
+		instance.setValue(instances.attribute(getNsitesAttr().name()), Math.log(nsites));
 		
 		// 3 Npatterns
-		instance.setValue(instances.attribute(getNpatternsAttr().name()), Math.log(getNpatterns(partitions)));
+		instance.setValue(instances.attribute(getNpatternsAttr().name()), Math.log(npatterns));
 		
 		// 4 Npartitions
 		instance.setValue(instances.attribute(getNpartitionsAttr().name()), Math.log(getNpartitions(partitions)));
@@ -131,22 +152,22 @@ public class BEAST2Weka {
 		instance.setValue(instances.attribute(getNcalibrationsAttr().name()), getNcalibrations(tree));
 		
 		// 6 Proportion of gaps
-		instance.setValue(instances.attribute(getPgapsAttr().name()), getPgaps(partitions));
+		instance.setValue(instances.attribute(getPgapsAttr().name()), pgaps);
 		
 		// 7 Tree height
-		instance.setValue(instances.attribute(getTreeHeightAttr().name()), getTreeHeight(partitions));
+		instance.setValue(instances.attribute(getTreeHeightAttr().name()), treeHeight);
 		
 		// 8 Number of states
-		instance.setValue(instances.attribute(getNcharAttr().name()), getNchar(partitions));
+		instance.setValue(instances.attribute(getNcharAttr().name()), nchar);
 		
 		// POEMS
 		for (POEM poem : weightSampler.getPoems()) {
 			
 			// Weight/dimension
-			//instance.setValue(instances.attribute(getPoemWeightDimensionAttr(poem).name()), getPoemWeightDimension(poem, getNtaxa(partitions)));
+			//instance.setValue(instances.attribute(getPoemWeightDimensionAttr(poem).name()), getPoemWeightDimension(poem, ntaxa));
 			
 			// Weight
-			instance.setValue(instances.attribute(getPoemWeightAttr(poem).name()), getPoemWeight(poem, getNtaxa(partitions)));
+			instance.setValue(instances.attribute(getPoemWeightAttr(poem).name()), getPoemWeight(poem, ntaxa));
 			
 			// Dimension
 			//instance.setValue(instances.attribute(getPoemDimensionAttr(poem).name()), Math.log(getPoemDimension(poem)));
@@ -386,58 +407,24 @@ public class BEAST2Weka {
 	
 	/**
 	 * Get the proportion of gaps in an alignment
+	 * Alignments are summarised once, see AlignmentSummary
 	 * @param partitions
 	 * @return
 	 */
 	public static double getPgaps(List<Alignment> partitions) {
-		
 		if (partitions == null || partitions.isEmpty()) return 0;
-		
-		// Proportion of gaps in alignment(s)
-		int numGaps = 0;
-		int nsites = 0;
-		for (Alignment aln : partitions) {
-			for (String taxon : aln.getTaxaNames()) {
-				String seq = aln.getSequenceAsString(taxon);
-				numGaps += seq.length() - seq.replace("-", "").length();
-				nsites += seq.length();
-			}
-		}
-		
-		double proportion = 1.0 * numGaps / nsites;
-		return proportion;	
-				
-		
+		return AlignmentSummary.getPgaps(partitions);
 	}
 	
 	/**
 	 * Estimated tree height using neighbour joining
+	 * The tree of each alignment is only built once, see AlignmentSummary
 	 * @param partitions
 	 * @return
 	 */
 	public static double getTreeHeight(List<Alignment> partitions) {
-		
 		if (partitions == null) return 0;
-		
-		// Take the weighted-mean height across all partitions
-		double weightedMeanHeight = 0;
-		int nsitesTotal = 0;
-		ClusterTree tree = new ClusterTree();
-		
-		for (Alignment aln : partitions) {
-			
-			// Set estimate to false so that the tree is still calculated even in -resume mode
-			tree.initByName("clusterType", "neighborjoining", "taxa", aln, "estimate", false);
-			
-			// Calculate height
-			double height = tree.getRoot().getHeight();
-			double nsites = aln.getSiteCount();
-			weightedMeanHeight += height * nsites;
-			nsitesTotal += nsites;
-		}
-		
-		return weightedMeanHeight / nsitesTotal;
-		
+		return AlignmentSummary.getTreeHeight(partitions);
 	}
 
 	
@@ -448,7 +435,7 @@ public class BEAST2Weka {
 	 */
 	public static int getNtaxa(List<Alignment> partitions) {
 		if (partitions == null || partitions.isEmpty()) return 0;
-		return partitions.get(0).getTaxaNames().size();
+		return AlignmentSummary.get(partitions.get(0)).getNtaxa();
 	}
 
 	
@@ -459,11 +446,7 @@ public class BEAST2Weka {
 	 */
 	public static int getNsites(List<Alignment> partitions) {
 		if (partitions == null || partitions.isEmpty()) return 0;
-		int siteCount = 0;
-		for (Alignment aln : partitions) {
-			siteCount += aln.getSiteCount();
-		}
-		return siteCount;
+		return AlignmentSummary.getNsites(partitions);
 	}
 
 	/**
@@ -473,11 +456,7 @@ public class BEAST2Weka {
 	 */
 	public static int getNpatterns(List<Alignment> partitions) {
 		if (partitions == null || partitions.isEmpty()) return 0;
-		int patternCount = 0;
-		for (Alignment aln : partitions) {
-			patternCount += aln.getPatternCount();
-		}
-		return patternCount;
+		return AlignmentSummary.getNpatterns(partitions);
 	}
 	
 	
@@ -533,7 +512,7 @@ public class BEAST2Weka {
 	 */
 	public static int getNchar(List<Alignment> partitions) {
 		if (partitions == null || partitions.isEmpty()) return 0;
-		return partitions.get(0).getDataType().getStateCount();
+		return AlignmentSummary.get(partitions.get(0)).getNstates();
 	}
 	
 	
@@ -0,0 +1,348 @@
+package poetry.util;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import beast.core.util.Log;
+import beast.evolution.alignment.Alignment;
+import beast.evolution.tree.Tree;
+
+
+/**
+ * A precomputed table of dataset features (ntaxa, nsites, npatterns, gaps, nchar and neighbour joining tree height),
+ * with one row per dataset file and partition. The table is built once by BuildDatasetCatalogue and saved as a tsv file
+ * Rows are looked up by file and partition (DatasetSampler), or by a fingerprint of the alignment's patterns (BEAST2Weka)
+ * Loaded catalogues are shared by all objects in this JVM and are never modified
+ * @author jdou557
+ *
+ */
+public class DatasetCatalogue {
+
+
+	// Partition name of an unpartitioned (or concatenated) alignment
+	public static final String WHOLE_ALIGNMENT = "*";
+
+	private static final String[] COLUMNS = new String[] { "file", "partition", "fingerprint", "ntaxa", "nsites", "npatterns", "ngaps", "nchar", "height" };
+
+	// Catalogues which have been loaded, by path
+	private static final ConcurrentHashMap<String, DatasetCatalogue> loaded = new ConcurrentHashMap<>();
+
+	// Catalogues which can be searched by fingerprint
+	private static final List<DatasetCatalogue> registered = new CopyOnWriteArrayList<>();
+
+
+	final LinkedHashMap<String, Entry> entries;
+	final HashMap<String, Entry> fingerprints;
+
+
+
+	public DatasetCatalogue() {
+		this.entries = new LinkedHashMap<>();
+		this.fingerprints = new HashMap<>();
+	}
+
+
+
+	/**
+	 * Load a catalogue file, or return the catalogue if it has already been loaded
+	 * The catalogue is registered so that BEAST2Weka can find its alignments by fingerprint
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	public static DatasetCatalogue load(File file) throws IOException {
+
+		String key = file.getAbsolutePath();
+		DatasetCatalogue catalogue = loaded.get(key);
+		if (catalogue != null) return catalogue;
+
+		catalogue = new DatasetCatalogue();
+		try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+
+			// Header
+			String line = reader.readLine();
+			if (line == null || !line.equals(String.join("\t", COLUMNS))) {
+				throw new IOException(file.getPath() + " is not a dataset catalogue");
+			}
+
+			int lineNum = 1;
+			while ((line = reader.readLine()) != null) {
+				lineNum ++;
+				if (line.isEmpty()) continue;
+				String[] vals = line.split("\t");
+				if (vals.length != COLUMNS.length) {
+					throw new IOException("Expected " + COLUMNS.length + " columns on line " + lineNum + " of " + file.getPath());
+				}
+				Entry entry = new Entry(vals[2], Integer.parseInt(vals[3]), Integer.parseInt(vals[4]), Integer.parseInt(vals[5]),
+										Long.parseLong(vals[6]), Integer.parseInt(vals[7]), Double.parseDouble(vals[8]));
+				catalogue.add(vals[0], vals[1], entry);
+			}
+
+		}
+
+
+		// Keep whichever was loaded first
+		DatasetCatalogue existing = loaded.putIfAbsent(key, catalogue);
+		if (existing != null) return existing;
+		registered.add(catalogue);
+		Log.warning("Loaded " + catalogue.size() + " datasets from " + file.getPath());
+		return catalogue;
+
+	}
+
+
+
+	/**
+	 * Search all loaded catalogues for this alignment
+	 * The alignment is fingerprinted, which is linear in its number of patterns, so this is only done if a catalogue has been loaded
+	 * @param aln
+	 * @return the entry, or null if it is not catalogued
+	 */
+	public static Entry lookup(Alignment aln) {
+		if (registered.isEmpty() || aln == null) return null;
+		String fingerprint = getFingerprint(aln);
+		for (DatasetCatalogue catalogue : registered) {
+			Entry entry = catalogue.fingerprints.get(fingerprint);
+			if (entry != null && entry.matches(aln)) return entry;
+		}
+		return null;
+	}
+
+
+
+	/**
+	 * Get the entry of this partition of a file
+	 * @param filePath
+	 * @param partitionID - partition id, or WHOLE_ALIGNMENT
+	 * @return the entry, or null if it is not catalogued
+	 */
+	public Entry get(String filePath, String partitionID) {
+		return this.entries.get(getKey(filePath, partitionID));
+	}
+
+
+	/**
+	 * Add (or replace) the entry of this partition of a file
+	 * @param filePath
+	 * @param partitionID
+	 * @param entry
+	 */
+	public void add(String filePath, String partitionID, Entry entry) {
+		entry.filePath = filePath;
+		entry.partitionID = partitionID;
+		this.entries.put(getKey(filePath, partitionID), entry);
+		this.fingerprints.put(entry.fingerprint, entry);
+	}
+
+
+	/**
+	 * Number of entries
+	 * @return
+	 */
+	public int size() {
+		return this.entries.size();
+	}
+
+
+	/**
+	 * All entries, in the order they were added
+	 * @return
+	 */
+	public Collection<Entry> getEntries() {
+		return this.entries.values();
+	}
+
+
+	/**
+	 * Save the catalogue as a tsv file
+	 * @param file
+	 * @throws IOException
+	 */
+	public void write(File file) throws IOException {
+		try (PrintStream out = new PrintStream(file)) {
+			out.println(String.join("\t", COLUMNS));
+			for (Entry entry : this.entries.values()) {
+				out.println(entry.filePath + "\t" + entry.partitionID + "\t" + entry.fingerprint + "\t" + entry.ntaxa + "\t" + entry.nsites + "\t" +
+							entry.npatterns + "\t" + entry.ngaps + "\t" + entry.nchar + "\t" + entry.height);
+			}
+		}
+	}
+
+
+	private static String getKey(String filePath, String partitionID) {
+		return filePath + "\t" + partitionID;
+	}
+
+
+
+	/**
+	 * Compute the features of this alignment
+	 * @param aln
+	 * @param njTree - the neighbour joining tree of the alignment
+	 * @return
+	 */
+	public static Entry compute(Alignment aln, Tree njTree) {
+
+		// Gaps are counted in the same way as BEAST2Weka.getPgaps
+		long ngaps = 0;
+		for (String taxon : aln.getTaxaNames()) {
+			String seq = aln.getSequenceAsString(taxon);
+			for (int i = 0; i < seq.length(); i ++) {
+				if (seq.charAt(i) == '-') ngaps++;
+			}
+		}
+
+		return new Entry(getFingerprint(aln), aln.getTaxonCount(), aln.getSiteCount(), aln.getPatternCount(), ngaps,
+						aln.getDataType().getStateCount(), njTree.getRoot().getHeight());
+
+	}
+
+
+
+	/**
+	 * A hash of the taxa, data type, and the patterns and their weights
+	 * Patterns are sorted by the alignment, so the fingerprint does not depend on the order of the sites or how the alignment was built
+	 * @param aln
+	 * @return
+	 */
+	public static String getFingerprint(Alignment aln) {
+		try {
+
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			digest.update(aln.getDataType().getTypeDescription().getBytes(StandardCharsets.UTF_8));
+			for (String taxon : aln.getTaxaNames()) {
+				digest.update((byte) 0);
+				digest.update(taxon.getBytes(StandardCharsets.UTF_8));
+			}
+
+			byte[] buffer = new byte[4 * (aln.getTaxonCount() + 1)];
+			for (int p = 0; p < aln.getPatternCount(); p ++) {
+				int[] pattern = aln.getPattern(p);
+				int k = 0;
+				for (int val : pattern) k = putInt(buffer, k, val);
+				k = putInt(buffer, k, aln.getPatternWeight(p));
+				digest.update(buffer, 0, k);
+			}
+
+			StringBuilder str = new StringBuilder();
+			for (byte b : digest.digest()) str.append(String.format("%02x", b));
+			return str.toString();
+
+		} catch (java.security.NoSuchAlgorithmException e) {
+			throw new IllegalArgumentException(e);
+		}
+	}
+
+
+	private static int putInt(byte[] buffer, int k, int val) {
+		buffer[k++] = (byte) (val >>> 24);
+		buffer[k++] = (byte) (val >>> 16);
+		buffer[k++] = (byte) (val >>> 8);
+		buffer[k++] = (byte) val;
+		return k;
+	}
+
+
+
+
+	/**
+	 * The features of one partition of one file
+	 */
+	public static class Entry {
+
+		String filePath;
+		String partitionID;
+		final String fingerprint;
+		final int ntaxa;
+		final int nsites;
+		final int npatterns;
+		final long ngaps;
+		final int nchar;
+		final double height;
+
+		public Entry(String fingerprint, int ntaxa, int nsites, int npatterns, long ngaps, int nchar, double height) {
+			this.fingerprint = fingerprint;
+			this.ntaxa = ntaxa;
+			this.nsites = nsites;
+			this.npatterns = npatterns;
+			this.ngaps = ngaps;
+			this.nchar = nchar;
+			this.height = height;
+		}
+
+
+		/**
+		 * Guard against fingerprint collisions and stale catalogues
+		 */
+		boolean matches(Alignment aln) {
+			return this.ntaxa == aln.getTaxonCount() && this.nsites == aln.getSiteCount() && this.npatterns == aln.getPatternCount();
+		}
+
+
+		public String getFilePath() {
+			return this.filePath;
+		}
+
+		public String getPartitionID() {
+			return this.partitionID;
+		}
+
+		public int getNtaxa() {
+			return this.ntaxa;
+		}
+
+		public int getNsites() {
+			return this.nsites;
+		}
+
+		public int getNpatterns() {
+			return this.npatterns;
+		}
+
+		/**
+		 * Number of gap characters across all sequences
+		 * @return
+		 */
+		public long getNgaps() {
+			return this.ngaps;
+		}
+
+		/**
+		 * Proportion of characters which are gaps
+		 * @return
+		 */
+		public double getPgaps() {
+			return 1.0 * this.ngaps / ((long) this.ntaxa * this.nsites);
+		}
+
+		/**
+		 * Number of states in the data type
+		 * @return
+		 */
+		public int getNchar() {
+			return this.nchar;
+		}
+
+		/**
+		 * Height of the neighbour joining tree
+		 * @return
+		 */
+		public double getHeight() {
+			return this.height;
+		}
+
+	}
+
+
+}
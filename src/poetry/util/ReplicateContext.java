@@ -0,0 +1,107 @@
+package poetry.util;
+
+import java.io.File;
+import java.util.concurrent.Callable;
+
+
+/**
+ * The working directory of the replicate which is running on the current thread
+ * A separate BEAST process can use its user.dir, but when several replicates share a JVM (see ReplicateRunner),
+ * relative paths must be resolved against the replicate's own folder instead
+ * New threads inherit the working directory of the thread which creates them (eg. the chains of a coupled MCMC). 
+ * Pooled threads outlive the tasks they run, and would keep the working directory of whichever replicate created them, so tasks which are 
+ * submitted to a thread pool are wrapped (see wrap) to run in the working directory of the thread which submitted them
+ * @author jdou557
+ *
+ */
+public class ReplicateContext {
+
+
+	private static final InheritableThreadLocal<File> workingDir = new InheritableThreadLocal<>();
+
+
+	/**
+	 * Set the working directory of this thread (and any threads it creates)
+	 * @param dir - or null to revert to user.dir
+	 */
+	public static void setWorkingDirectory(File dir) {
+		if (dir == null) workingDir.remove();
+		else workingDir.set(dir.getAbsoluteFile());
+	}
+
+
+	/**
+	 * The working directory of this thread
+	 * @return
+	 */
+	public static File getWorkingDirectory() {
+		File dir = workingDir.get();
+		if (dir == null) return new File(System.getProperty("user.dir"));
+		return dir;
+	}
+
+
+	/**
+	 * Is a replicate folder set on this thread?
+	 * @return
+	 */
+	public static boolean isSet() {
+		return workingDir.get() != null;
+	}
+
+
+	/**
+	 * Resolve a path against the working directory of this thread
+	 * Absolute paths are returned unchanged
+	 * @param path
+	 * @return
+	 */
+	public static File resolve(String path) {
+		if (path == null) return null;
+		File file = new File(path);
+		if (file.isAbsolute() || !isSet()) return file;
+		return new File(getWorkingDirectory(), path);
+	}
+
+
+	/**
+	 * Wrap a task so that it runs in the working directory of this thread, whichever thread runs it
+	 * The working directory of the running thread is restored afterwards
+	 * @param task
+	 * @return
+	 */
+	public static Runnable wrap(Runnable task) {
+		File dir = workingDir.get();
+		return () -> {
+			File previous = workingDir.get();
+			setWorkingDirectory(dir);
+			try {
+				task.run();
+			} finally {
+				setWorkingDirectory(previous);
+			}
+		};
+	}
+
+
+	/**
+	 * Wrap a task so that it runs in the working directory of this thread, whichever thread runs it
+	 * The working directory of the running thread is restored afterwards
+	 * @param task
+	 * @return
+	 */
+	public static <T> Callable<T> wrapCallable(Callable<T> task) {
+		File dir = workingDir.get();
+		return () -> {
+			File previous = workingDir.get();
+			setWorkingDirectory(dir);
+			try {
+				return task.call();
+			} finally {
+				setWorkingDirectory(previous);
+			}
+		};
+	}
+
+
+}
@@ -1,15 +1,18 @@
 package poetry.util;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.nio.file.Files;
-import java.nio.file.Paths;
+import java.io.Reader;
+import java.nio.file.Path;
 
 import org.apache.commons.compress.archivers.ArchiveException;
 import org.apache.commons.compress.archivers.ArchiveStreamFactory;
@@ -20,6 +23,8 @@ import org.apache.commons.compress.utils.IOUtils;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
 
 import beast.core.BEASTObject;
 import beast.core.Input;
@@ -60,7 +65,6 @@ public class WeightedFile extends BEASTObject {
 	String speciesSplitOn;
 	String dateSplitOn;
 	
-	List<File> createdTmpFiles;
 	List<XMLCondition> conditions;
 	
 	
@@ -96,9 +100,6 @@ public class WeightedFile extends BEASTObject {
 			}
 		}
 		
-		// A list of tmp files made during the unzipping. These will all be deleted when WeightedFile.close() is called
-		this.createdTmpFiles = new ArrayList<File>();
-				
 		
 		//if (!file.exists()) throw new IllegalArgumentException("Cannot locate file " + file.getAbsolutePath());
 		if (this.weight < 0) throw new IllegalArgumentException("Please set weight to at least 0");
@@ -130,8 +131,7 @@ public class WeightedFile extends BEASTObject {
 	}
 	
 	/**
-	 * Returns the File path. This will unzip and store in a tmp directory if necessary
-	 * Make sure to call close() after you're done with this file so the tmp directories can be deleted
+	 * Returns the File path. This will unzip into the ArchiveCache if necessary
 	 * @return
 	 */
 	public File unzipFile() {
@@ -143,12 +143,152 @@ public class WeightedFile extends BEASTObject {
 		return this.file.getPath();
 	}
 	
+	
+	/**
+	 * The name of the terminal file, without any extensions. eg. dataset1 for datasets.tar.gz/dataset1.nex.gz
+	 * This is the id which NexusParser would give the file
+	 * @return
+	 */
+	public String getBaseName() {
+		return this.file.getName().replaceAll("\\..*", "");
+	}
+	
+	
+	/**
+	 * Open the file as a reader. See openStream()
+	 * @return
+	 * @throws IOException
+	 */
+	public Reader openReader() throws IOException {
+		return new BufferedReader(new InputStreamReader(this.openStream()));
+	}
+	
+	
+	/**
+	 * Open the file as a stream, reading through any archives on its path (.tar, .gz, .tar.gz or .zip) without extracting them
+	 * eg. datasets.tar.gz/datasets/dataset1.nex streams the dataset1.nex entry straight out of the gzipped tarball
+	 * Make sure to close the stream
+	 * @return
+	 * @throws IOException
+	 */
+	public InputStream openStream() throws IOException {
+		
+		
+		// Find the first plain file on the path
+		Path path = this.file.toPath().normalize();
+		File current = path.getRoot() == null ? null : path.getRoot().toFile();
+		int i = 0;
+		for (; i < path.getNameCount(); i ++) {
+			String ele = path.getName(i).toString();
+			current = current == null ? new File(ele) : new File(current, ele);
+			if (!current.isDirectory()) break;
+		}
+		if (current == null || !current.isFile()) throw new FileNotFoundException("Cannot open " + this.file.getAbsolutePath());
+		
+		
+		// The rest of the path is inside this file
+		List<String> remaining = new ArrayList<>();
+		for (i = i + 1; i < path.getNameCount(); i ++) remaining.add(path.getName(i).toString());
+		InputStream stream = new FileInputStream(current);
+		try {
+			return openWithin(stream, remaining);
+		}catch (IOException e) {
+			stream.close();
+			throw e;
+		}
+		
+	}
+	
+	
+	/**
+	 * Follow the remaining path through the archive in this stream
+	 * @param stream
+	 * @param remaining
+	 * @return a stream of the terminal file
+	 * @throws IOException
+	 */
+	private InputStream openWithin(InputStream stream, List<String> remaining) throws IOException {
+		
+		
+		// Detect the format from the first bytes
+		InputStream buffered = new BufferedInputStream(stream);
+		byte[] header = new byte[512];
+		buffered.mark(header.length);
+		int len = IOUtils.readFully(buffered, header);
+		buffered.reset();
+		ArchiveCache.Format format = ArchiveCache.detect(header, len);
+		
+		
+		switch (format) {
+		
+			// Gunzip. The path continues inside the decompressed stream
+			case gzip: {
+				return openWithin(new GZIPInputStream(buffered), remaining);
+			}
+			
+			
+			// Find the entry which matches the start of the path
+			case tar: {
+				TarArchiveInputStream tar = new TarArchiveInputStream(buffered);
+				TarArchiveEntry entry;
+				while ((entry = tar.getNextTarEntry()) != null) {
+					if (entry.isDirectory()) continue;
+					int matched = matchEntry(entry.getName(), remaining);
+					if (matched > 0) return openWithin(tar, remaining.subList(matched, remaining.size()));
+				}
+				break;
+			}
+			
+			
+			case zip: {
+				ZipInputStream zip = new ZipInputStream(buffered);
+				ZipEntry entry;
+				while ((entry = zip.getNextEntry()) != null) {
+					if (entry.isDirectory()) continue;
+					int matched = matchEntry(entry.getName(), remaining);
+					if (matched > 0) return openWithin(zip, remaining.subList(matched, remaining.size()));
+				}
+				break;
+			}
+			
+			
+			// Found the file
+			default: {
+				if (remaining.isEmpty()) return buffered;
+				break;
+			}
+		
+		}
+		
+		
+		throw new FileNotFoundException("Cannot open " + this.file.getAbsolutePath() + ". Please ensure the terminal file is a plain text file");
+		
+	}
+	
+	
+	/**
+	 * The number of path elements which this archive entry matches
+	 * @param entryName
+	 * @param remaining
+	 * @return the number matched, or 0 if it is not a prefix of the path
+	 */
+	private static int matchEntry(String entryName, List<String> remaining) {
+		String[] bits = entryName.split("/");
+		int matched = 0;
+		for (String bit : bits) {
+			if (bit.isEmpty() || bit.equals(".")) continue;
+			if (matched >= remaining.size() || !bit.equals(remaining.get(matched))) return 0;
+			matched ++;
+		}
+		return matched;
+	}
+	
 	/**
-	 * Deletes all tmp files made during the unzipping process
-	 * If this function is not called, then tmp files will acumulate
+	 * Release this file after unzipping
+	 * Extracted archives are kept in the ArchiveCache (which limits its own size), so nothing is deleted
 	 */
 	public void close() {
-		WeightedFile.deleteFiles(this.createdTmpFiles);
+		
 	}
 	
 	
@@ -184,93 +324,55 @@ public class WeightedFile extends BEASTObject {
 
 	/**
 	 * Returns the directory of this file
-	 * If the file is unzipped, a temporary file will be created
+	 * Each archive on the path (.tar, .gz, .tar.gz or .zip) is extracted into the ArchiveCache, and the rest of the path is
+	 * followed from inside the extracted folder. eg. datasets.tar.gz/datasets/dataset1.nex
+	 * Archives are only extracted the first time they are read
 	 * @param file
 	 * @return
 	 */
 	public File readZippedFile(File file) {
 		
 		
-		
-		
-		String[] pathEles = file.getPath().split("/");
-		
-		String cumulativePath = "";
-		for (int i = 0; i < pathEles.length; i ++) {
+		// Start at the file system root if the path is absolute
+		Path path = file.toPath().normalize();
+		File current = path.getRoot() == null ? null : path.getRoot().toFile();
+		for (int i = 0; i < path.getNameCount(); i ++) {
 			
-			String ele = pathEles[i];
+			String ele = path.getName(i).toString();
 			if (ele.isEmpty()) continue;
+			File next = current == null ? new File(ele) : new File(current, ele);
 			
-
-			// Is this zipped?
 			try {
-				//
-				//boolenew InputStream(archive)an zipped = type.equals("application/zip");
-				//ZipFile zipFile = new ZipFile(cumulativePath + ele);
-				//int x = 5;
 				
-				File archive = new File(cumulativePath + ele);
-				if (!archive.isDirectory()){
-					
-					// Found the file
-					if (WeightedFile.isTextFile(archive)) {
-						
-						return archive;
-					}
-					
-					// Unzipping is needed
-					else {
-						
-						String path = archive.getPath();
-						while (!(new File(path).isDirectory()) && !WeightedFile.isTextFile(new File(path))) {
-							
-							
-							
-							InputStream stream = WeightedFile.getStream(path);
-							File newTmpFile = new File(WeightedFile.getTmpFileDir(cumulativePath));
-							
-							// Extract
-							WeightedFile.extract(stream, newTmpFile);
-							
-							
-							this.createdTmpFiles.add(newTmpFile);
-							path = newTmpFile.getPath();
-							
-							
-							stream.close();
-							
-							System.out.println(path);
-						}
-						
-						
-					}
-					
-					cumulativePath += createdTmpFiles.get(createdTmpFiles.size()-1);
-					
-					
-					
-					
-				}else {
-					cumulativePath += ele;
+				if (next.isDirectory()) {
+					current = next;
+					continue;
 				}
+				if (!next.exists()) break;
 				
-
+				
+				// Found the file
+				if (WeightedFile.isTextFile(next)) {
+					return next;
+				}
+				
+				
+				// Extract it (and any archives inside it, eg. .tar.gz) and continue the path inside
+				while (next.isFile() && !WeightedFile.isTextFile(next)) {
+					next = ArchiveCache.extract(next);
+				}
+				current = next;
 				
 			} catch (Exception e) {
 				e.printStackTrace();
-				WeightedFile.deleteFiles(createdTmpFiles);
 				throw new IllegalArgumentException("Error opening " + file.getAbsolutePath());
 			}
 			
-			
-			if (i < pathEles.length - 1) cumulativePath += "/";
-			
-			
 		}
 		
 		
-		// Delete tmp files
-		this.close();
+		// The path ends on a plain file which came out of an archive
+		if (current != null && current.isFile()) return current;
 		
 		throw new IllegalArgumentException("Cannot open " + file.getAbsolutePath() + ". Please ensure the terminal file is a plain text file");
 		
@@ -320,54 +422,28 @@ public class WeightedFile extends BEASTObject {
 	 */
 	public static InputStream getStream(String filePath) throws Exception {
 		
-		String type = Files.probeContentType(Paths.get(filePath));
-		System.out.println(filePath + " is a " + type);
-		switch (type) {
+		switch (ArchiveCache.detect(new File(filePath))) {
 		
 		
 			// Gunzip 
-			case "application/x-compressed-tar":{
-				InputStream stream = new GZIPInputStream(new FileInputStream(filePath));
-				return stream;
-				
-			}
-			
-			
-			// Also gunzip 
-			case "application/gzip":{
+			case gzip:{
 				InputStream stream = new GZIPInputStream(new FileInputStream(filePath));
 				return stream;
 			}
 			
 			
 			// Tarball 
-			case "application/x-tar":{
+			case tar:{
 				
 				final InputStream is = new FileInputStream(filePath); 
 				final TarArchiveInputStream stream = (TarArchiveInputStream) new ArchiveStreamFactory().createArchiveInputStream("tar", is);
 				return stream;
-				//InputStream stream = new TarInputStream(new FileInputStream(filePath));
-				//return stream;
-				//WeightedFile.gunzip(stream, cumulativePath + "tmp");
 			}
 			
-			
-			// Zipped
-			//case "application/zip":{
-				//InputStream stream = new ZipInputStream(new FileInputStream(filePath));
-				//return stream;
-			//}
-			
 		
-			// Plain text file 
-			case "text/plain":{
-				InputStream stream = new FileInputStream(filePath);
-				return stream;
-			}
-			
-			
-			// XML file
-			case "application/xml":{
+			// Plain text or xml file 
+			case text:
+			case xml:{
 				InputStream stream = new FileInputStream(filePath);
 				return stream;
 			}
@@ -391,10 +467,8 @@ public class WeightedFile extends BEASTObject {
 	 * @throws IOException
 	 */
 	public static boolean isTextFile(File file) throws IOException {
-		//System.out.println("Probing " + Paths.get(file.getPath()).toString() + " exists:" + file.exists());
-		String type = Files.probeContentType(Paths.get(file.getPath()));
-		//System.out.println("it is a  " + type);
-		return type == null || type.equals("text/plain") || type.equals("application/xml");
+		if (file.isDirectory()) return false;
+		return !ArchiveCache.isArchive(ArchiveCache.detect(file));
 	}
 	
 	
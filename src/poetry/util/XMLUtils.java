@@ -1,9 +1,12 @@
 package poetry.util;
 
-import java.io.ByteArrayInputStream;
+import java.io.OutputStream;
+import java.io.StringReader;
 import java.io.StringWriter;
 import java.io.Writer;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 
 import javax.xml.parsers.DocumentBuilder;
@@ -20,6 +23,7 @@ import org.w3c.dom.Element;
 import org.w3c.dom.NamedNodeMap;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
+import org.xml.sax.InputSource;
 
 
 
@@ -31,6 +35,10 @@ import org.w3c.dom.NodeList;
 public class XMLUtils {
 	
 	
+	// Key of the id index in the Document's user data
+	private static final String ID_INDEX_KEY = "poetry.idindex";
+	
+	
 	/**
 	 * Removes all children which are NOT on the list of attribute values
 	 * @param attr the name of an attribute
@@ -122,6 +130,14 @@ public class XMLUtils {
 		if (targetID == null || targetID.isEmpty()) return null;
 		
 		
+		// Use the index if the document has one
+		Document owner = doc instanceof Document ? (Document) doc : doc.getOwnerDocument();
+		HashMap<String, List<Element>> index = getIDIndex(owner);
+		if (index != null) {
+			return getIndexedElement(index, doc, targetID);
+		}
+		
+		
 		NodeList elements;
 		if (doc instanceof Element) {
 			elements = ((Element)doc).getElementsByTagName("*");
@@ -211,7 +227,7 @@ public class XMLUtils {
 	    factory.setNamespaceAware(true);
 	    DocumentBuilder builder = factory.newDocumentBuilder();
 
-	    return builder.parse(new ByteArrayInputStream(xml.getBytes()));
+	    return builder.parse(new InputSource(new StringReader(xml)));
 	}
 	
 	
@@ -225,17 +241,35 @@ public class XMLUtils {
 	public static String getXMLStringFromDocument(Document doc) throws Exception {
 
 		doc.normalize();
-		Transformer tf = TransformerFactory.newInstance().newTransformer();
-		tf.setOutputProperty(OutputKeys.ENCODING, "UTF-8");
-		tf.setOutputProperty(OutputKeys.INDENT, "yes");
 		Writer out = new StringWriter();
-		tf.transform(new DOMSource(doc), new StreamResult(out));
+		getTransformer().transform(new DOMSource(doc), new StreamResult(out));
 		return out.toString();
 		
 		
 	}
 	
 	
+	/**
+	 * Write a Document to a stream, without building the whole xml string in memory
+	 * The stream is not closed
+	 * @param doc
+	 * @param out
+	 * @throws Exception
+	 */
+	public static void writeDocument(Document doc, OutputStream out) throws Exception {
+		doc.normalize();
+		getTransformer().transform(new DOMSource(doc), new StreamResult(out));
+	}
+	
+	
+	private static Transformer getTransformer() throws Exception {
+		Transformer tf = TransformerFactory.newInstance().newTransformer();
+		tf.setOutputProperty(OutputKeys.ENCODING, "UTF-8");
+		tf.setOutputProperty(OutputKeys.INDENT, "yes");
+		return tf;
+	}
+	
+	
 	/**
 	 * Get all elements in a document and return them in a list
 	 * This allows permutation of the document without affecting the ordering of elements in the list
@@ -454,6 +488,21 @@ public class XMLUtils {
 	 */
 	public static String getUniqueID(Document doc, String id) {
 		
+		
+		// Index lookup
+		HashMap<String, List<Element>> index = getIDIndex(doc);
+		if (index != null) {
+			if (getIndexedElement(index, doc, id) != null) {
+				int k = 1;
+				while (getIndexedElement(index, doc, id + k) != null) {
+					k++;
+				}
+				id = id + k;
+			}
+			return id;
+		}
+		
+		
 		List<String> IDs = XMLUtils.getIDs(doc);
 		if (IDs.contains(id)) {
             int k = 1;
@@ -476,113 +525,237 @@ public class XMLUtils {
 		String id2 = XMLUtils.getUniqueID(doc, id);
 		//System.out.println(id + " -> " + id2);
 		ele.setAttribute("id", id2);
+		addToIDIndex(ele);
+	}
+	
+	
+	
+	/**
+	 * Build an index of all ids in the document, so that getElementById and getUniqueID no longer scan the whole document
+	 * The index is stored in the document and must be kept up to date by making all subsequent insertions, renames and 
+	 * id changes through the XMLUtils helpers (appendChild, insertBefore, renameNode, setID)
+	 * Removals do not need to go through the helpers because every lookup checks that the element is still in the document
+	 * @param doc
+	 */
+	public static void buildIDIndex(Document doc) {
+		doc.setUserData(ID_INDEX_KEY, new HashMap<String, List<Element>>(), null);
+		addToIDIndex(doc);
+	}
+	
+	
+	/**
+	 * Remove the id index from the document
+	 * @param doc
+	 */
+	public static void clearIDIndex(Document doc) {
+		doc.setUserData(ID_INDEX_KEY, null, null);
+	}
+	
+	
+	/**
+	 * Does this document have an id index?
+	 * @param doc
+	 * @return
+	 */
+	public static boolean hasIDIndex(Document doc) {
+		return getIDIndex(doc) != null;
+	}
+	
+	
+	/**
+	 * Add this node and all of its descendants to the id index of its document (if it has one)
+	 * @param node
+	 */
+	public static void addToIDIndex(Node node) {
+		
+		if (node == null) return;
+		Document doc = node instanceof Document ? (Document) node : node.getOwnerDocument();
+		HashMap<String, List<Element>> index = getIDIndex(doc);
+		if (index == null) return;
+		
+		if (node instanceof Element) indexElement(index, (Element) node);
+		List<Node> descendants;
+		if (node instanceof Element) descendants = getAllElements((Element) node);
+		else if (node instanceof Document) descendants = getAllElements((Document) node);
+		else return;
+		for (Node desc : descendants) indexElement(index, (Element) desc);
+		
+	}
+	
+	
+	/**
+	 * Append the child to the parent and index its ids
+	 * @param parent
+	 * @param child
+	 * @return the child
+	 */
+	public static Node appendChild(Node parent, Node child) {
+		parent.appendChild(child);
+		addToIDIndex(child);
+		return child;
+	}
+	
+	
+	/**
+	 * Insert the child into the parent before 'ref' and index its ids
+	 * @param parent
+	 * @param child
+	 * @param ref
+	 * @return the child
+	 */
+	public static Node insertBefore(Node parent, Node child, Node ref) {
+		parent.insertBefore(child, ref);
+		addToIDIndex(child);
+		return child;
+	}
+	
+	
+	/**
+	 * Remove the child from its parent
+	 * Stale index entries are ignored by lookups, so there is nothing to update
+	 * @param parent
+	 * @param child
+	 * @return the child
+	 */
+	public static Node removeChild(Node parent, Node child) {
+		return parent.removeChild(child);
+	}
+	
+	
+	/**
+	 * Rename an element and index the result, which may be a new element
+	 * @param doc
+	 * @param ele
+	 * @param namespaceURI
+	 * @param name
+	 * @return the renamed element
+	 */
+	public static Element renameNode(Document doc, Element ele, String namespaceURI, String name) {
+		Element renamed = (Element) doc.renameNode(ele, namespaceURI, name);
+		if (renamed != ele) addToIDIndex(renamed);
+		return renamed;
+	}
+	
+	
+	@SuppressWarnings("unchecked")
+	private static HashMap<String, List<Element>> getIDIndex(Document doc) {
+		if (doc == null) return null;
+		return (HashMap<String, List<Element>>) doc.getUserData(ID_INDEX_KEY);
+	}
+	
+	
+	private static void indexElement(HashMap<String, List<Element>> index, Element ele) {
+		if (!ele.hasAttribute("id")) return;
+		String id = ele.getAttribute("id");
+		List<Element> elements = index.get(id);
+		if (elements == null) {
+			elements = new ArrayList<Element>(1);
+			index.put(id, elements);
+		}
+		for (Element other : elements) {
+			if (other == ele) return;
+		}
+		elements.add(ele);
+	}
+	
+	
+	/**
+	 * Find the first element (in document order) within 'root' which has this id, using the index
+	 * Index entries which have been removed from the tree, or whose id has since changed, are skipped
+	 * @param index
+	 * @param root
+	 * @param targetID
+	 * @return
+	 */
+	private static Element getIndexedElement(HashMap<String, List<Element>> index, Node root, String targetID) {
+		
+		List<Element> elements = index.get(targetID);
+		if (elements == null) return null;
+		
+		Element first = null;
+		for (Element ele : elements) {
+			if (ele == root) continue;
+			if (!targetID.equals(ele.getAttribute("id"))) continue;
+			if (!isDescendant(ele, root)) continue;
+			if (first == null || (first.compareDocumentPosition(ele) & Node.DOCUMENT_POSITION_PRECEDING) != 0) {
+				first = ele;
+			}
+		}
+		return first;
+		
+	}
+	
+	
+	private static boolean isDescendant(Node node, Node ancestor) {
+		Node parent = node.getParentNode();
+		while (parent != null) {
+			if (parent == ancestor) return true;
+			parent = parent.getParentNode();
+		}
+		return false;
 	}
 
 
 	/**
 	 * Delete all duplicate ids
-	 * This is done by finding the last occurrences of each duplicate and changing it from id to idref
+	 * This is done by finding the later occurrences of each duplicate and changing it from id to idref
 	 * All other properties in the tag will be deleted
+	 * Single pass over the elements: the first occurrence of each id (which is still in the document when it is reached)
+	 * is kept, and later occurrences become idrefs. The children of a converted element are detached, and an element which 
+	 * was detached before its id's first occurrence was reached is left alone, just as in the original pairwise comparison
 	 * @param doc
 	 */
 	public static void mergeElementsWhichShareID(Document doc) {
 		
-
 		
 		List<Node> elements = getAllElements(doc);
-
 		
-		// Elements to delete (after iterating)
-		List<Element> nodesToDelete = new ArrayList<Element>();
+		// Position of the first occurrence of each id
+		HashMap<String, Integer> firstOccurrence = new HashMap<String, Integer>();
 		
-
+		// Elements which have been detached, and the position of the first occurrence which detached them
+		IdentityHashMap<Node, Integer> detachedBy = new IdentityHashMap<Node, Integer>();
 		
-		// Pairwise comparison of all elements to find if they share an id
-		for (int i = 0; i < elements.size(); i ++) {
-			Node node_i = elements.get(i);
-			if (node_i.getParentNode() == null) continue;
-        	if (node_i.getNodeType() == Node.ELEMENT_NODE) {
-        		
-  
-        		// Get the id of i
-        		Element ele_i = (Element) node_i;
-        		if (!ele_i.hasAttribute("id")) continue;
-        		String id_i = ele_i.getAttribute("id");
-        		
-        		for (int j = i+1; j < elements.size(); j ++) {
-        			
-        			Node node_j = elements.get(j);
-        			if (node_j.getParentNode() == null) continue;
-        			if (node_j.getNodeType() == Node.ELEMENT_NODE) {
-        				
-        				// Get the id of j
-                		Element ele_j = (Element) node_j;
-                		if (!ele_j.hasAttribute("id")) continue;
-                		String id_j = ele_j.getAttribute("id");
-                		
-                		// Are the 2 ids the same?
-        				if (id_i.equals(id_j)) {
-        					
-        					
-        					//System.out.println("Found match " + id_j);
-        					
-        					// Move the contents of j into i
-        					/*
-        					List<Node> toMove = nodeListToList(ele_j.getChildNodes());
-        					for (int k = 0; k < toMove.size(); k ++) {
-        						Node node = toMove.get(k);
-        						ele_j.removeChild(node);
-        						ele_i.appendChild(node);
-        					}
-        					*/
-        					
-        					
-        					
-        					// Remove all other attributes
-        					NamedNodeMap attributes = ele_j.getAttributes();
-        					for (int k = 0; k < attributes.getLength(); k ++) {
-        						Attr attr = (Attr) attributes.item(k);
-        						String attrName = attr.getNodeName();
-        						System.out.println(id_i + " removing " + attrName);
-        						if (!attrName.equals("name")) ele_j.removeAttribute(attrName);
-        					}
-        					
-        					// Remove all children
-        					for (Node child : XMLUtils.nodeListToList(ele_j.getChildNodes())){
-        						ele_j.removeChild(child);
-        					}
-        					
-        					ele_j.removeAttribute("id");
-        					ele_j.setAttribute("idref", id_i);
-        					
-        					
-        					
-        					//nodesToDelete.add(ele_j);
-        					
-        				}
-        				
-        			}
-        			
-        		}
-        		
-        	}
-	        	
-	        	
-		}
 		
-
-		/*
-		// Delete the duplicates (ie the matched j's)
-		for (Element duplicate : nodesToDelete) {
-			if (duplicate.getParentNode() != null) {
-				//System.out.println("removing " + duplicate.getAttribute("id"));
-				String name = duplicate.hasAttribute("name") ? duplicate.getAttribute("name") : duplicate.getNodeName();
-				String id = duplicate.getAttribute("id");
-				((Element)duplicate.getParentNode()).setAttribute(name, "@" + id);
-				duplicate.getParentNode().removeChild(duplicate);
+		for (int i = 0; i < elements.size(); i ++) {
+			
+			Element ele = (Element) elements.get(i);
+			if (!ele.hasAttribute("id")) continue;
+			String id = ele.getAttribute("id");
+			Integer detached = detachedBy.get(ele);
+			Integer first = firstOccurrence.get(id);
+			
+			
+			// First occurrence
+			if (first == null) {
+				if (detached == null) firstOccurrence.put(id, i);
+				continue;
 			}
+			
+			
+			// A later occurrence. Skip it if it was already detached when the first occurrence was reached
+			if (detached != null && detached <= first) continue;
+			
+			
+			// Remove all other attributes
+			NamedNodeMap attributes = ele.getAttributes();
+			for (int k = 0; k < attributes.getLength(); k ++) {
+				Attr attr = (Attr) attributes.item(k);
+				String attrName = attr.getNodeName();
+				if (!attrName.equals("name")) ele.removeAttribute(attrName);
+			}
+			
+			// Remove all children
+			for (Node child : XMLUtils.nodeListToList(ele.getChildNodes())){
+				ele.removeChild(child);
+				detachedBy.put(child, first);
+			}
+			
+			ele.removeAttribute("id");
+			ele.setAttribute("idref", id);
+			
 		}
-		*/
+		
 	}
 
 